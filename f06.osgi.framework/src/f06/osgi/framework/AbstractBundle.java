@@ -91,6 +91,12 @@ abstract class AbstractBundle implements Bundle {
 		}
 		
 		BundleURLClassPath classPath = framework.getBundleURLClassPath(this);
+		if (classPath == null) {
+			/*
+			 * removed from the framework
+			 */
+			return null;
+		}
 		
 		Enumeration e = classPath.findEntries(path, filePattern, recurse);
 		
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Files shared by the bundle revisions, named after the digest of their
+ * content: a bundle file or a jar of its class path installed more than once
+ * is stored once.
+ *
+ * Each revision lists the blobs it uses in a table kept in its cache. The
+ * blobs referred to are recorded as the revisions are fetched and installed,
+ * not counted: the blobs no revision refers to are deleted when the bundles
+ * have been fetched, since the caches of the revisions are deleted only at that
+ * time, hence a blob left by an uninstalled or updated bundle is deleted at the
+ * next startup.
+ */
+class BlobStore {
+
+	private final static int TABLE_MAGIC = 0xF06CB10B;
+
+	private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private File folder;
+
+	private Set referencedDigests;
+
+	public BlobStore(File folder) {
+		this.folder = folder;
+
+		this.referencedDigests = new HashSet();
+	}
+
+	static String toHex(byte[] digest) {
+		StringBuilder sb = new StringBuilder(digest.length * 2);
+		for (int i = 0; i < digest.length; i++) {
+			sb.append(HEX_DIGITS[(digest[i] >> 4) & 0x0F]);
+			sb.append(HEX_DIGITS[digest[i] & 0x0F]);
+		}
+
+		return sb.toString();
+	}
+
+	File getFile(String digest) {
+		return new File(folder, digest);
+	}
+
+	/*
+	 * Moves the file to the store, unless a blob with the same digest is
+	 * already there, and records the blob as referred to.
+	 */
+	synchronized File add(File file, String digest) throws IOException {
+		if (!folder.exists()) {
+			folder.mkdirs();
+		}
+
+		File blob = getFile(digest);
+
+		if (blob.exists() && blob.length() == file.length()) {
+			file.delete();
+		} else {
+			blob.delete();
+
+			if (!file.renameTo(blob)) {
+				throw new IOException(new StringBuilder("Cannot move ").append(file).append(" to ").append(blob).toString());
+			}
+		}
+
+		reference(digest);
+
+		return blob;
+	}
+
+	synchronized void reference(String digest) {
+		referencedDigests.add(digest);
+	}
+
+	/*
+	 * Deletes the blobs not referred to, along with the files stored next to
+	 * them (e.g. the entry indexes).
+	 */
+	synchronized void sweep() {
+		File[] files = folder.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		for (int i = 0; i < files.length; i++) {
+			String digest = files[i].getName();
+
+			int index = digest.indexOf('.');
+			if (index != -1) {
+				digest = digest.substring(0, index);
+			}
+
+			if (!referencedDigests.contains(digest)) {
+				files[i].delete();
+			}
+		}
+	}
+
+	/*
+	 * Blob digests by entry name, an empty map if the table is missing.
+	 */
+	static Map loadTable(File file) throws IOException {
+		Map digestsByName = new HashMap();
+
+		if (!file.exists()) {
+			return digestsByName;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != TABLE_MAGIC) {
+				throw new IOException(new StringBuilder("Invalid blob table ").append(file).toString());
+			}
+
+			int size = in.readInt();
+			for (int i = 0; i < size; i++) {
+				String name = in.readUTF();
+
+				digestsByName.put(name, in.readUTF());
+			}
+		} finally {
+			in.close();
+		}
+
+		return digestsByName;
+	}
+
+	static void storeTable(File file, Map digestsByName) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(TABLE_MAGIC);
+
+			out.writeInt(digestsByName.size());
+
+			Iterator it = digestsByName.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry entry = (Map.Entry) it.next();
+
+				out.writeUTF((String) entry.getKey());
+				out.writeUTF((String) entry.getValue());
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
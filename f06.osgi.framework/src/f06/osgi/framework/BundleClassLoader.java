@@ -16,13 +16,19 @@
 package f06.osgi.framework;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.security.ProtectionDomain;
 import java.security.SecureClassLoader;
-import java.util.Dictionary;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.osgi.framework.AdminPermission;
 import org.osgi.framework.Bundle;
@@ -30,20 +36,115 @@ import org.osgi.framework.Constants;
 import org.osgi.service.log.LogService;
 import org.osgi.service.packageadmin.ExportedPackage;
 import org.osgi.service.packageadmin.PackageAdmin;
-import org.osgi.service.packageadmin.RequiredBundle;
 
 import f06.util.ArrayUtil;
-import f06.util.IOUtil;
 import f06.util.ManifestEntry;
-import f06.util.TextUtil;
 
 class BundleClassLoader extends SecureClassLoader {
 
+	static {
+		Method method = getRegisterAsParallelCapable();
+		if (method != null) {
+			try {
+				method.invoke(null, new Object[0]);
+			} catch (Exception e) {
+				// loaders are serialized by the VM
+			}
+		}
+	}
+	
+	/*
+	 * set while the current thread loads a class of the preload profile
+	 */
+	private final static ThreadLocal PRELOADING = new ThreadLocal();
+	
+	private static class FoundResource {
+		
+		final URL url;
+		
+		final long generation;
+		
+		FoundResource(URL url, long generation) {
+			this.url = url;
+			this.generation = generation;
+		}
+	}
+	
 	protected Framework framework;
 	protected Bundle host;
 	protected BundleURLClassPath[] classPaths;
 	protected boolean isActivationTriggered;
 	
+	/*
+	 * parsed headers of the host revision this class loader has been created for
+	 */
+	protected BundleMetadata metadata;
+	
+	/*
+	 * package name -> ExportedPackageImpl the package is wired to. The map is
+	 * never modified once published: the wires established at resolve time and
+	 * the dynamic ones replace it as a whole under wiresLock.
+	 */
+	private volatile Map wiresByPackage;
+	
+	/*
+	 * bundles wired through Require-Bundle, in the order they are specified
+	 * in the host and fragments manifests
+	 */
+	private volatile Bundle[] requiredBundles;
+	
+	private Object wiresLock;
+	
+	/*
+	 * Negative cache: class and resource name -> wiring generation the lookup
+	 * failed in. An entry only answers while the generation is unchanged, that
+	 * is until a bundle is resolved or unresolved (exports added or removed,
+	 * fragments attached, refresh). Names the dynamic imports failed to wire are
+	 * retried as well once a new export appears.
+	 */
+	private Map missedClasses;
+	
+	private Map missedResources;
+	
+	private volatile long missesGeneration;
+	
+	private AtomicLong negativeCacheHits;
+	
+	private AtomicLong negativeCacheMisses;
+	
+	/*
+	 * Positive cache: resource name -> FoundResource, valid for the same
+	 * wiring generations as the negative cache. The URL found first is returned
+	 * to every caller afterwards.
+	 */
+	private Map foundResources;
+	
+	private AtomicLong resourceCacheHits;
+	
+	/*
+	 * ClassLoadingStatistics: lookups and nanoseconds by delegation step
+	 */
+	private AtomicLong[] lookups;
+	
+	private AtomicLong[] lookupTimes;
+	
+	private AtomicLong definedClasses;
+	
+	private AtomicLong bytesRead;
+	
+	private AtomicLong lazyActivations;
+	
+	/*
+	 * names of the classes defined while the framework is starting, in order,
+	 * null once the preload profile has been stored or if it is not recorded
+	 */
+	private volatile List definedClassNames;
+	
+	/*
+	 * class name -> lock held while the class is defined, see findClass
+	 */
+	private ConcurrentHashMap classLoadingLocks;
+	
 	protected final static Enumeration EMPTY_ENUMERATION = new Enumeration() {
 		public boolean hasMoreElements() {
 			return false;
@@ -60,11 +161,299 @@ class BundleClassLoader extends SecureClassLoader {
 		this.framework = framework;
 		this.host = host;
 		this.classPaths = classPaths;
+		
+		this.metadata = framework.getBundleMetadata(host);
+		
+		this.wiresByPackage = Collections.EMPTY_MAP;
+		
+		this.requiredBundles = new Bundle[0];
+		
+		this.wiresLock = new Object();
+		
+		this.missedClasses = new ConcurrentHashMap();
+		
+		this.missedResources = new ConcurrentHashMap();
+		
+		this.missesGeneration = framework.getWiringGeneration();
+		
+		this.negativeCacheHits = new AtomicLong();
+		
+		this.negativeCacheMisses = new AtomicLong();
+		
+		this.foundResources = new ConcurrentHashMap();
+		
+		this.resourceCacheHits = new AtomicLong();
+		
+		this.lookups = new AtomicLong[ClassLoadingStatistics.STEPS];
+		
+		this.lookupTimes = new AtomicLong[ClassLoadingStatistics.STEPS];
+		
+		for (int i = 0; i < ClassLoadingStatistics.STEPS; i++) {
+			lookups[i] = new AtomicLong();
+			
+			lookupTimes[i] = new AtomicLong();
+		}
+		
+		this.definedClasses = new AtomicLong();
+		
+		this.bytesRead = new AtomicLong();
+		
+		this.lazyActivations = new AtomicLong();
+		
+		if (framework.isPreloadProfileRecorded()) {
+			this.definedClassNames = Collections.synchronizedList(new ArrayList());
+		}
+		
+		this.classLoadingLocks = new ConcurrentHashMap();
+	}
+	
+	/*
+	 * ClassLoader.registerAsParallelCapable is available since Java 7: once
+	 * registered, the VM does not lock the whole class loader when it loads a
+	 * class through it, so that threads loading distinct classes of the same bundle
+	 * do not wait for each other.
+	 * 
+	 * It registers the class it is invoked from, hence the static initializer
+	 * of each class loader class has to invoke it itself, once its superclass
+	 * has been registered. Returns null on older VMs.
+	 */
+	static Method getRegisterAsParallelCapable() {
+		try {
+			Method method = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable", new Class[0]);
+			method.setAccessible(true);
+			
+			return method;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/*
+	 * The same class must be defined once, whereas distinct classes can be
+	 * defined at the same time.
+	 */
+	private Object getClassLoadingLock0(String name) {
+		Object lock = classLoadingLocks.get(name);
+		if (lock == null) {
+			Object lock0 = new Object();
+			
+			lock = classLoadingLocks.putIfAbsent(name, lock0);
+			if (lock == null) {
+				lock = lock0;
+			}
+		}
+		
+		return lock;
 	}
 	
 	public Bundle getBundle() {
 		return host;
 	}
+	
+	/*
+	 * The first wire established for a package is kept, as the importer
+	 * must be wired to a single exporter of it.
+	 */
+	void addPackageWire(ExportedPackage exportedPackage) {
+		Bundle exportingBundle = exportedPackage.getExportingBundle();
+		if (exportingBundle == null || exportingBundle.equals(host)) {
+			/*
+			 * the package is loaded locally, see find1
+			 */
+			return;
+		}
+		
+		synchronized (wiresLock) {
+			if (wiresByPackage.containsKey(exportedPackage.getName())) {
+				return;
+			}
+			
+			Map wiresByPackage = new HashMap(this.wiresByPackage);
+			wiresByPackage.put(exportedPackage.getName(), exportedPackage);
+			
+			this.wiresByPackage = wiresByPackage;
+		}
+	}
+	
+	void addRequiredBundle(Bundle bundle) {
+		synchronized (wiresLock) {
+			if (!ArrayUtil.contains(requiredBundles, bundle)) {
+				requiredBundles = (Bundle[]) ArrayUtil.add(requiredBundles, bundle);
+			}
+		}
+	}
+	
+	/*
+	 * the host failed to resolve or has been unresolved
+	 */
+	void clearWires() {
+		synchronized (wiresLock) {
+			wiresByPackage = Collections.EMPTY_MAP;
+			
+			requiredBundles = new Bundle[0];
+		}
+	}
+	
+	ExportedPackage[] getPackageWires() {
+		Map wiresByPackage = this.wiresByPackage;
+		
+		return (ExportedPackage[]) wiresByPackage.values().toArray(new ExportedPackage[wiresByPackage.size()]);
+	}
+	
+	Bundle[] getRequiredBundles() {
+		return requiredBundles;
+	}
+
+	/*
+	 * Returns false if the wiring has changed since the caches were last used.
+	 */
+	private boolean isCurrentGeneration(long generation) {
+		if (generation != missesGeneration) {
+			/*
+			 * entries of older generations never answer, they are only
+			 * dropped here not to let the maps grow
+			 */
+			missesGeneration = generation;
+			
+			missedClasses.clear();
+			
+			missedResources.clear();
+			
+			foundResources.clear();
+			
+			return false;
+		}
+		
+		return true;
+	}
+
+	private boolean isMissed(Map missed, String name, long generation) {
+		if (!isCurrentGeneration(generation)) {
+			return false;
+		}
+		
+		Long generation0 = (Long) missed.get(name);
+		if (generation0 != null && generation0.longValue() == generation) {
+			negativeCacheHits.incrementAndGet();
+			
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/*
+	 * generation is the one read before the lookup started, so that a lookup
+	 * overlapping a wiring change is not cached as valid for the new wiring
+	 */
+	private void addMissed(Map missed, String name, long generation) {
+		negativeCacheMisses.incrementAndGet();
+		
+		missed.put(name, Long.valueOf(generation));
+	}
+	
+	/*
+	 * lookups answered by the negative cache
+	 */
+	long getNegativeCacheHits() {
+		return negativeCacheHits.get();
+	}
+	
+	/*
+	 * lookups that went through the whole search and failed
+	 */
+	long getNegativeCacheMisses() {
+		return negativeCacheMisses.get();
+	}
+	
+	int getNegativeCacheSize() {
+		return missedClasses.size() + missedResources.size();
+	}
+	
+	private URL getFoundResource(String name, long generation) {
+		FoundResource foundResource = (FoundResource) foundResources.get(name);
+		if (foundResource != null && foundResource.generation == generation) {
+			resourceCacheHits.incrementAndGet();
+			
+			return foundResource.url;
+		}
+		
+		return null;
+	}
+	
+	/*
+	 * lookups answered by the resource cache
+	 */
+	long getResourceCacheHits() {
+		return resourceCacheHits.get();
+	}
+	
+	int getResourceCacheSize() {
+		return foundResources.size();
+	}
+	
+	private void addLookup(int step, long start) {
+		lookups[step].incrementAndGet();
+		
+		lookupTimes[step].addAndGet(System.nanoTime() - start);
+	}
+	
+	long getLookups(int step) {
+		return lookups[step].get();
+	}
+	
+	long getLookupTime(int step) {
+		return lookupTimes[step].get();
+	}
+	
+	long getDefinedClasses() {
+		return definedClasses.get();
+	}
+	
+	long getBytesRead() {
+		return bytesRead.get();
+	}
+	
+	long getLazyActivations() {
+		return lazyActivations.get();
+	}
+	
+	/*
+	 * Returns the classes defined so far and stops recording them.
+	 */
+	String[] getDefinedClassNames() {
+		List definedClassNames = this.definedClassNames;
+		if (definedClassNames == null) {
+			return null;
+		}
+		
+		this.definedClassNames = null;
+		
+		synchronized (definedClassNames) {
+			return (String[]) definedClassNames.toArray(new String[definedClassNames.size()]);
+		}
+	}
+	
+	/*
+	 * Loads a class of the preload profile ahead of time, through the usual
+	 * delegation. A lookup which fails while preloading is not cached, and a
+	 * class whose definition would trigger a lazy activation is not defined
+	 * (see findClass).
+	 */
+	void preload(String name) {
+		PRELOADING.set(Boolean.TRUE);
+		try {
+			loadClass(name, false);
+		} catch (ClassNotFoundException e) {
+			// not available any more
+		} catch (LinkageError e) {
+			/*
+			 * a superclass or an interface has not been defined
+			 */
+		} finally {
+			PRELOADING.set(null);
+		}
+	}
 
 	// Waiting for Generics
 	private Object find0(String name, Class tClazz) throws Exception {
@@ -77,13 +466,18 @@ class BundleClassLoader extends SecureClassLoader {
 		 * resource is not found, then the search terminates and the request fails.
 		 */
 		if (pkgName.startsWith("java.")) {
-			if (tClazz == Class.class) {
-				return getParent().loadClass(name);
-			} else if (tClazz == URL.class) {
-				return getParent().getResource(name);
-			} else if (tClazz == Enumeration.class) {
-				return getParent().getResources(name);
-			} 
+			long start = System.nanoTime();
+			try {
+				if (tClazz == Class.class) {
+					return getParent().loadClass(name);
+				} else if (tClazz == URL.class) {
+					return getParent().getResource(name);
+				} else if (tClazz == Enumeration.class) {
+					return getParent().getResources(name);
+				} 
+			} finally {
+				addLookup(ClassLoadingStatistics.BOOT_DELEGATION, start);
+			}
 		}
 		
 		/*
@@ -93,23 +487,28 @@ class BundleClassLoader extends SecureClassLoader {
 		 * search ends.
 		 */
 		if (framework.isBootDelegated(pkgName)) {
-			if (tClazz == Class.class) {
-				try {
-					return getParent().loadClass(name);
-				} catch (Exception e) {
-					// do nothing
-				}
-			} else if (tClazz == URL.class) {
-				URL u = getParent().getResource(name);
-				if (u != null) {
-					return u;
-				}
-			} else if (tClazz == Enumeration.class) {
-				Enumeration e = getParent().getResources(name);
-				if (e != null) {
-					return e;
-				}
-			} 
+			long start = System.nanoTime();
+			try {
+				if (tClazz == Class.class) {
+					try {
+						return getParent().loadClass(name);
+					} catch (Exception e) {
+						// do nothing
+					}
+				} else if (tClazz == URL.class) {
+					URL u = getParent().getResource(name);
+					if (u != null) {
+						return u;
+					}
+				} else if (tClazz == Enumeration.class) {
+					Enumeration e = getParent().getResources(name);
+					if (e != null) {
+						return e;
+					}
+				} 
+			} finally {
+				addLookup(ClassLoadingStatistics.BOOT_DELEGATION, start);
+			}
 		}
 
 		/*
@@ -121,53 +520,25 @@ class BundleClassLoader extends SecureClassLoader {
 		 * exporting class loader and the class or resource is not found, then the
 		 * search terminates and the request fails.
 		 */
-		ExportedPackage[] exportedPackages = framework.getExportedPackages(pkgName);
-		if (exportedPackages != null) {
-			for (int i = 0; i < exportedPackages.length; i++) {
-				ExportedPackage exportedPackage = exportedPackages[i];
-				Bundle[] importingBundles = exportedPackage.getImportingBundles(); 
-				
-				if (importingBundles != null && ArrayUtil.contains(importingBundles, host)) {
-					Bundle exportingBundle = exportedPackage.getExportingBundle();
-					
-					if (!exportingBundle.equals(host)) {							
-						String[] exclude = ((ExportedPackageImpl) exportedPackage).getExclude();
-						for (int j = 0; j < exclude.length; j++) {
-							String filter = new StringBuilder(exportedPackage.getName()).append('.').append(exclude[j]).toString();
-							if (TextUtil.wildcardCompare(filter, name) == 0) {
-								return null;
-							}
-						}
-
-						String[] include = ((ExportedPackageImpl) exportedPackage).getInclude();
-						for (int j = 0; j < include.length; j++) {
-							String filter = new StringBuilder(exportedPackage.getName()).append('.').append(include[j]).toString();
-							if (TextUtil.wildcardCompare(filter, name) == 0) {
-								/*
-								* 3.8.4  3 If the class or resource is in a package that is imported using Import-
-								* Package or was imported dynamically in a previous load, then the
-								* request is delegated to the exporting bundles class loader; otherwise the
-								* search continues with the next step. If the request is delegated to an
-								* exporting class loader and the class or resource is not found, then the
-								* search terminates and the request fails.
-								*/
-								BundleClassLoader classLoader = (BundleClassLoader) ((ExportedPackageImpl) exportedPackage).classLoader;
-								
-								if (tClazz == Class.class) {
-									return classLoader.findClass(name);
-								} else if (tClazz == URL.class) {
-									URL u = classLoader.findResource(name);
-
-									return u;
-								} else { // if (tClazz == Enumeration.class) {
-									Enumeration e = classLoader.findResources(name);
-
-									return e;
-								}
-							}
-						}
+		ExportedPackageImpl exportedPackage = (ExportedPackageImpl) wiresByPackage.get(pkgName);
+		if (exportedPackage != null) {
+			BundleClassLoader classLoader = (BundleClassLoader) exportedPackage.classLoader;
+			
+			long start = System.nanoTime();
+			try {
+				if (tClazz == Class.class) {
+					if (!exportedPackage.isClassVisible0(name)) {
+						return null;
 					}
+					
+					return classLoader.findClass(name);
+				} else if (tClazz == URL.class) {
+					return classLoader.findResource(name);
+				} else { // if (tClazz == Enumeration.class) {
+					return classLoader.findResources(name);
 				}
+			} finally {
+				addLookup(ClassLoadingStatistics.IMPORT_PACKAGE, start);
 			}
 		}
 		
@@ -183,74 +554,68 @@ class BundleClassLoader extends SecureClassLoader {
 		 * resource is not found, then the search continues with the next step.
 		 */
 		
-		ManifestEntry[] entries = ManifestEntry.parse(host.getHeaders().get(Constants.REQUIRE_BUNDLE));
-		if (entries != null) {
-			for (int i = 0; i < entries.length; i++) {
-				ManifestEntry entry = entries[i];
-				RequiredBundle[] requiredBundles = framework.getRequiredBundles(entry.getName());
-				if (requiredBundles == null) {
-					return null;
-				}
-				
-				String versionAttribute = null;
-				if (entry.hasAttribute(Constants.VERSION_ATTRIBUTE)) {
-					versionAttribute = entry.getAttributeValue(Constants.VERSION_ATTRIBUTE);
-				}
-				
-				VersionRange versionRange = new VersionRange(versionAttribute);
-				for (int j = 0; j < requiredBundles.length; j++) {
-					RequiredBundle requiredBundle = requiredBundles[i];
-					
-					Bundle bundle = requiredBundle.getBundle();
-					if (framework.getBundleType(bundle) == PackageAdmin.BUNDLE_TYPE_FRAGMENT) {
-						framework.log(LogService.LOG_WARNING, "Tried to use a fragment bundle as a required bundle.");
-						continue;
-					}
+		Bundle[] requiredBundles = this.requiredBundles;
+		if (requiredBundles.length > 0) {
+			long start = System.nanoTime();
+			try {
+				for (int i = 0; i < requiredBundles.length; i++) {
+					Bundle bundle = requiredBundles[i];
 					
-					if (versionRange.isIncluded(requiredBundle.getVersion())) {
-						/*
-						 * To use the proper BundleURLClassPath(s) (when update/uninstall) and apply the 
-						 * associated permissions.
-						 */
-						if (tClazz == Class.class) {
-							try {
-								return bundle.loadClass(name);
-							} catch (Exception e) {
-								// do nothing
-							}
-						} else if (tClazz == URL.class) {
-							URL u = bundle.getResource(name);
-							if (u != null) {
-								return u;
-							}
-						} else if (tClazz == Enumeration.class) {
-							Enumeration e = bundle.getResources(name);
-							if (e != null) {
-								return e;
-							}
+					/*
+					 * To use the proper BundleURLClassPath(s) (when update/uninstall) and apply the 
+					 * associated permissions.
+					 */
+					if (tClazz == Class.class) {
+						try {
+							return bundle.loadClass(name);
+						} catch (Exception e) {
+							// do nothing
+						}
+					} else if (tClazz == URL.class) {
+						URL u = bundle.getResource(name);
+						if (u != null) {
+							return u;
+						}
+					} else if (tClazz == Enumeration.class) {
+						Enumeration e = bundle.getResources(name);
+						if (e != null) {
+							return e;
 						}
 					}
 				}
+			} finally {
+				addLookup(ClassLoadingStatistics.REQUIRE_BUNDLE, start);
 			}
-		}	
+		}
 
-		if (tClazz == Class.class) {
-			try {
-				return findClass(name);
-			} catch (Exception e) {
-				// nothing
-			}
-		} else if (tClazz == URL.class) {
-			URL u = findResource(name);
-			if (u != null) {
-				return u;
-			}
-		} else if (tClazz == Enumeration.class) {
-			Enumeration e = findResources(name);
-			if (e != null) {
-				return e;
-			}
-		} 
+		long start = System.nanoTime();
+		try {
+			if (tClazz == Class.class) {
+				try {
+					return findClass(name);
+				} catch (ClassNotFoundException e) {
+					/*
+					 * a class found but not defined carries the cause: the
+					 * search ends, and the failure is not cached
+					 */
+					if (e.getCause() != null) {
+						throw e;
+					}
+				}
+			} else if (tClazz == URL.class) {
+				URL u = findResource(name);
+				if (u != null) {
+					return u;
+				}
+			} else if (tClazz == Enumeration.class) {
+				Enumeration e = findResources(name);
+				if (e != null) {
+					return e;
+				}
+			} 
+		} finally {
+			addLookup(ClassLoadingStatistics.LOCAL, start);
+		}
 
 		/*
 		 * 3.8.4  7. If the class or resource is in a package that is exported by the bundle or
@@ -305,57 +670,67 @@ class BundleClassLoader extends SecureClassLoader {
 		 * search terminates and the request fails.
 		 */
 		
-		if (exportedPackages != null) {
-			entries = ManifestEntry.parse(host.getHeaders().get(Constants.DYNAMICIMPORT_PACKAGE));
-			if (entries != null) {
-				for (int i = 0; i < entries.length; i++) {
-					ManifestEntry entry = entries[i];
-					if (TextUtil.wildcardCompare(entry.getName(), pkgName) == 0) {
+		if (exportedPackages != null && metadata.getDynamicImports().length > 0) {
+			start = System.nanoTime();
+			try {
+				ManifestEntry[] entries = metadata.getDynamicImports();
+				if (entries != null) {
+					for (int i = 0; i < entries.length; i++) {
+						ManifestEntry entry = entries[i];
+						if (metadata.isDynamicallyImported(i, pkgName)) {
 						
-						/*
-						 * 3.8.2
-						 */						
-						Bundle[] bundles = null;
-						if (entry.hasAttribute(Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE)) {
-							String symbolicName = entry.getAttributeValue(Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE);
-							// ???
-							String versionRange = entry.getAttributeValue(Constants.VERSION_ATTRIBUTE);
+							/*
+							 * 3.8.2
+							 */						
+							Bundle[] bundles = null;
+							if (entry.hasAttribute(Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE)) {
+								String symbolicName = entry.getAttributeValue(Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE);
+								// ???
+								String versionRange = entry.getAttributeValue(Constants.VERSION_ATTRIBUTE);
 							
-							bundles = framework.getBundles(symbolicName, versionRange);
-						}
+								bundles = framework.getBundles(symbolicName, versionRange);
+							}
 						
-						for (int j = 0; j < exportedPackages.length; j++) {
-							ExportedPackage exportedPackage = exportedPackages[j];
-							if (
-									bundles == null ||
-									ArrayUtil.contains(bundles, exportedPackage.getExportingBundle())
-								) {
-								try {
-									BundleClassLoader classLoader = (BundleClassLoader) ((ExportedPackageImpl) exportedPackage).classLoader;
+							for (int j = 0; j < exportedPackages.length; j++) {
+								ExportedPackage exportedPackage = exportedPackages[j];
+								if (
+										bundles == null ||
+										ArrayUtil.contains(bundles, exportedPackage.getExportingBundle())
+									) {
+									try {
+										BundleClassLoader classLoader = (BundleClassLoader) ((ExportedPackageImpl) exportedPackage).classLoader;
 									
-									Object object = classLoader.find1(name, tClazz);
-									if (object != null) {
-										Bundle[] importingBundles = exportedPackage.getImportingBundles();
-										if (importingBundles != null) {
-											importingBundles = (Bundle[]) ArrayUtil.add(importingBundles, host);
-										} else {
-											importingBundles = new Bundle[] {
-												host	
-											};
-										}
+										Object object = classLoader.find1(name, tClazz);
+										if (object != null) {
+											Bundle[] importingBundles = exportedPackage.getImportingBundles();
+											if (importingBundles != null) {
+												importingBundles = (Bundle[]) ArrayUtil.add(importingBundles, host);
+											} else {
+												importingBundles = new Bundle[] {
+													host	
+												};
+											}
+										
+											// XXX see: Dependency Injection
+											((ExportedPackageImpl) exportedPackage).setImportingBundles0(importingBundles);
 										
-										// XXX see: Dependency Injection
-										((ExportedPackageImpl) exportedPackage).setImportingBundles0(importingBundles);
+											/*
+											 * future loads of the package are handled in step 3
+											 */
+											addPackageWire(exportedPackage);
 
-										return object;
+											return object;
+										}
+									} catch (Exception e) {
+										// do nothing
 									}
-								} catch (Exception e) {
-									// do nothing
 								}
 							}
 						}
 					}
 				}
+			} finally {
+				addLookup(ClassLoadingStatistics.DYNAMIC_IMPORT, start);
 			}
 		}
 
@@ -398,10 +773,8 @@ class BundleClassLoader extends SecureClassLoader {
 
 		String plafLibname = System.mapLibraryName(libname);
 
-		Dictionary headers = bundle.getHeaders();
-		
 		try {
-			ManifestEntry[] entries = ManifestEntry.parse(headers.get(Constants.BUNDLE_NATIVECODE));
+			ManifestEntry[] entries = framework.getBundleMetadata(bundle).getNativeCode();
 			if (entries != null) {
 				for (int i = 0; i < entries.length; i++) {
 					ManifestEntry entry = entries[i];
@@ -474,6 +847,22 @@ class BundleClassLoader extends SecureClassLoader {
 	
 	// Local
 	protected Class findClass(String name) throws ClassNotFoundException {
+		/*
+		 * 4.4.6.2  A class defined ahead of time would not trigger the lazy
+		 * activation when the bundle loads it.
+		 */
+		if (
+				PRELOADING.get() != null &&
+				
+				metadata.isLazyActivation() &&
+				
+				metadata.isActivationTriggered(FrameworkUtil.getClassPackage(name)) &&
+				
+				findLoadedClass(name) == null
+				) {
+			throw new ClassNotFoundException(name);
+		}
+		
 		try {
 	        Class c = findLoadedClass(name);
 	        if (c != null) {
@@ -481,42 +870,67 @@ class BundleClassLoader extends SecureClassLoader {
 	        }
 
 	        String entryName = name.replace('.', '/').concat(".class");
-			InputStream is = null;
+	        /*
+	         * read at once into an array as large as the class file, which is
+	         * passed to defineClass as it is
+	         */
+			byte[] b = null;
 			Bundle bundle = null;
 			for (int i = 0; i < classPaths.length; i++) {
 				BundleURLClassPath classPath = classPaths[i];			
-				is = classPath.getEntryAsStream(-1, entryName);
-				if (is != null) {
+				b = classPath.getEntryAsBytes(entryName);
+				if (b != null) {
 					bundle = classPath.getBundle();
 					break;
 				}
 			}
 
-			if (is != null) {
+			if (b != null) {
 				String pkgName = FrameworkUtil.getClassPackage(name);
-				Package pkg = getPackage(pkgName);
-
-				URL codesourceURL = new URL(bundle.getLocation());
 
-				if (pkg != null) {
-					if (pkg.isSealed()) {
-						if (!pkg.isSealed(codesourceURL)) {
-							throw new SecurityException(
-								new StringBuilder("Sealing violation: package ").append(pkgName).append(" is sealed").toString());
+				Class clazz;
+				synchronized (getClassLoadingLock0(name)) {
+					clazz = findLoadedClass(name);
+					if (clazz == null) {
+						Package pkg = getPackage(pkgName);
+		
+						URL codesourceURL = new URL(bundle.getLocation());
+		
+						if (pkg != null) {
+							if (pkg.isSealed()) {
+								if (!pkg.isSealed(codesourceURL)) {
+									throw new SecurityException(
+										new StringBuilder("Sealing violation: package ").append(pkgName).append(" is sealed").toString());
+								}
+							}
+						} else {
+							try {
+								definePackage(pkgName, null, null, null, null, null, null, null);
+							} catch (IllegalArgumentException e) {
+								/*
+								 * the package has been defined by a thread loading
+								 * another class of it
+								 */
+							}
+						}
+						
+						/*
+						 * Each bundle has its own protection domain.
+						 */
+						ProtectionDomain protectionDomain = framework.getProtectionDomain(bundle);				
+						clazz = defineClass(name, b, 0, b.length, protectionDomain);
+						
+						definedClasses.incrementAndGet();
+						
+						bytesRead.addAndGet(b.length);
+						
+						List definedClassNames = this.definedClassNames;
+						if (definedClassNames != null) {
+							definedClassNames.add(name);
 						}
 					}
-				} else {
-					definePackage(pkgName, null, null, null, null, null, null, null);
 				}
 				
-				byte[] b = IOUtil.getBytes(is);
-				
-				/*
-				 * Each bundle has its own protection domain.
-				 */
-				ProtectionDomain protectionDomain = framework.getProtectionDomain(bundle);				
-				Class clazz = defineClass(name, b, 0, b.length, protectionDomain);
-				
 				/*
 				 * 4.4.6.2   Lazy Activation Policy
 				 * 
@@ -535,7 +949,7 @@ class BundleClassLoader extends SecureClassLoader {
 						
 						this.host.getState() == Bundle.STARTING &&
 						
-						((HostBundle) this.host).isActivationTriggered(pkgName) &&
+						metadata.isActivationTriggered(pkgName) &&
 						
 						/*
 						 * 4.7.2  During the shutdown, bundles with a lazy policy
@@ -543,13 +957,18 @@ class BundleClassLoader extends SecureClassLoader {
 						 */
 						framework.getState() != Bundle.STOPPING
 						) {
+					if (!((HostBundle) this.host).isActivationTriggered()) {
+						lazyActivations.incrementAndGet();
+					}
+					
 	        		((HostBundle)this. host).activate();
 			    }
 
 				return clazz;
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
+			framework.log(LogService.LOG_ERROR, new StringBuilder("Class ").append(name).append(" cannot be defined by ").append(host).toString(), e);
+			
 			throw new ClassNotFoundException(e.getMessage(), e);
 		}
 		
@@ -588,14 +1007,33 @@ class BundleClassLoader extends SecureClassLoader {
 	protected Class loadClass(String name, boolean resolve)	throws ClassNotFoundException {
     	Class c = findLoadedClass(name);
 		if (c == null) {
+			long generation = framework.getWiringGeneration();
+			
+			if (isMissed(missedClasses, name, generation)) {
+				throw new ClassNotFoundException(name);
+			}
+			
 			try {
 				c = (Class) find0(name, Class.class);
-				if (c == null) {
-					throw new ClassNotFoundException(name);
+			} catch (ClassNotFoundException e) {
+				/*
+				 * a class found but not defined carries the cause, and is
+				 * not cached
+				 */
+				if (e.getCause() != null) {
+					throw e;
 				}
 			} catch (Exception e) {
 				throw new ClassNotFoundException(e.getMessage(), e);
 			}
+			
+			if (c == null) {
+				if (PRELOADING.get() == null) {
+					addMissed(missedClasses, name, generation);
+				}
+				
+				throw new ClassNotFoundException(name);
+			}
 		}
 
 		if (resolve) {
@@ -606,9 +1044,31 @@ class BundleClassLoader extends SecureClassLoader {
 	}
 	
     public URL getResource(String name) {
-    	URL url = null;
+		long generation = framework.getWiringGeneration();
+		
+		if (isMissed(missedResources, name, generation)) {
+			return null;
+		}
+		
+		/*
+		 * the permission to get the resource is checked by the class loader it
+		 * is found by, the cache would skip that check
+		 */
+		boolean cached = System.getSecurityManager() == null;
+		
+    	URL url = cached ? getFoundResource(name, generation) : null;
+    	if (url != null) {
+    		return url;
+    	}
+    	
     	try {
     		url = (URL) find0(name, URL.class);
+    		
+    		if (url == null) {
+    			addMissed(missedResources, name, generation);
+    		} else if (cached) {
+    			foundResources.put(name, new FoundResource(url, generation));
+    		}
 		} catch (Exception e) {
 			framework.log(LogService.LOG_ERROR, e.getMessage(), e);
 		}
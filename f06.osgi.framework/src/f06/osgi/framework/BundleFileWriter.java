@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+import org.osgi.framework.Constants;
+
+import f06.util.IOUtil;
+import f06.util.ManifestEntry;
+import f06.util.ManifestUtil;
+
+/*
+ * Writes a bundle file reading the input stream once: while the bytes are
+ * written, they are digested and parsed as a zip stream, so that the manifest,
+ * the entry names and the entries to be extracted to the bundle cache are
+ * available as soon as the stream has been read.
+ *
+ * The entries are extracted only if the manifest precedes them, as it does in
+ * the jars built by the jar tool, the others are extracted from the bundle file
+ * afterwards. A zip stream cannot be parsed past a stored entry followed by a
+ * data descriptor: the rest of the stream is then just copied, and the manifest
+ * and the entry names are read from the central directory of the bundle file.
+ */
+class BundleFileWriter {
+
+	private final static int BUFFER_SIZE = 65536;
+
+	final static String DIGEST_ALGORITHM = "SHA-1";
+
+	/*
+	 * Copies the bytes read to the bundle file, a buffer at a time.
+	 */
+	private static class CopyingInputStream extends InputStream {
+
+		private InputStream in;
+
+		private OutputStream out;
+
+		private MessageDigest digest;
+
+		private byte[] buf;
+
+		private int pos;
+
+		private int count;
+
+		CopyingInputStream(InputStream in, OutputStream out, MessageDigest digest) {
+			this.in = in;
+
+			this.out = out;
+
+			this.digest = digest;
+
+			this.buf = new byte[BUFFER_SIZE];
+		}
+
+		private boolean fill() throws IOException {
+			int n = in.read(buf, 0, buf.length);
+			if (n == -1) {
+				return false;
+			}
+
+			digest.update(buf, 0, n);
+
+			out.write(buf, 0, n);
+
+			pos = 0;
+
+			count = n;
+
+			return true;
+		}
+
+		public int read() throws IOException {
+			if (pos == count && !fill()) {
+				return -1;
+			}
+
+			return buf[pos++] & 0xFF;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+
+			if (pos == count && !fill()) {
+				return -1;
+			}
+
+			int n = Math.min(len, count - pos);
+
+			System.arraycopy(buf, pos, b, off, n);
+
+			pos += n;
+
+			return n;
+		}
+
+		public int available() throws IOException {
+			return count - pos;
+		}
+
+		/*
+		 * copies what the zip stream did not read, e.g. the central directory
+		 */
+		void drain() throws IOException {
+			pos = count;
+
+			while (fill()) {
+				pos = count;
+			}
+		}
+
+		/*
+		 * the zip stream must not close the input stream
+		 */
+		public void close() throws IOException {
+		}
+	}
+
+	private File file;
+
+	private File extractFolder;
+
+	private Dictionary headers;
+
+	private Set classPathEntries;
+
+	private Set nativeCodeEntries;
+
+	private List entryNames;
+
+	private List extractedNames;
+
+	private Map digestsByName;
+
+	private byte[] digest;
+
+	/*
+	 * The entries are extracted to extractFolder, to be moved to the bundle
+	 * cache once its location is known.
+	 */
+	BundleFileWriter(File file, File extractFolder) {
+		this.file = file;
+
+		this.extractFolder = extractFolder;
+
+		this.entryNames = new ArrayList();
+
+		this.extractedNames = new ArrayList();
+
+		this.digestsByName = new HashMap();
+	}
+
+	private static MessageDigest createDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			IOException e1 = new IOException(e.getMessage());
+			e1.initCause(e);
+
+			throw e1;
+		}
+	}
+
+	/*
+	 * The input stream is closed.
+	 */
+	void write(InputStream is) throws IOException {
+		MessageDigest md = createDigest();
+
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			CopyingInputStream cis = new CopyingInputStream(is, fos, md);
+
+			try {
+				ZipInputStream zis = new ZipInputStream(cis);
+
+				ZipEntry entry;
+				while ((entry = zis.getNextEntry()) != null) {
+					String name = entry.getName();
+
+					entryNames.add(name);
+
+					if (headers == null && JarFile.MANIFEST_NAME.equalsIgnoreCase(name)) {
+						setHeaders(new Manifest(zis));
+					} else if (headers != null && !entry.isDirectory()) {
+						/*
+						 * jars stored without compression are read in place
+						 */
+						if (
+								(classPathEntries.contains(name) && entry.getMethod() != ZipEntry.STORED) ||
+								nativeCodeEntries.contains(name)) {
+							extract(zis, name);
+						}
+					}
+				}
+			} catch (ZipException e) {
+				entryNames = null;
+			}
+
+			cis.drain();
+		} finally {
+			fos.close();
+
+			is.close();
+		}
+
+		if (entryNames == null) {
+			readCentralDirectory();
+		}
+
+		digest = md.digest();
+	}
+
+	private void setHeaders(Manifest manifest) throws IOException {
+		headers = ManifestUtil.toDictionary(manifest);
+
+		classPathEntries = getClassPathEntries(headers);
+
+		nativeCodeEntries = getNativeCodeEntries(headers);
+	}
+
+	/*
+	 * The entries not extracted yet are extracted from the bundle file
+	 * afterwards, as those preceding the manifest.
+	 */
+	private void readCentralDirectory() throws IOException {
+		entryNames = new ArrayList();
+
+		JarFile jarFile = new JarFile(file, false);
+		try {
+			Enumeration entries = jarFile.entries();
+			while (entries.hasMoreElements()) {
+				entryNames.add(((ZipEntry) entries.nextElement()).getName());
+			}
+
+			if (headers == null) {
+				Manifest manifest = jarFile.getManifest();
+				if (manifest != null) {
+					setHeaders(manifest);
+				}
+			}
+		} finally {
+			jarFile.close();
+		}
+	}
+
+	/*
+	 * 3.8.1  the jars of the Bundle-ClassPath header
+	 */
+	private static Set getClassPathEntries(Dictionary headers) {
+		Set names = new HashSet();
+
+		try {
+			String bundleClassPath = (String) headers.get(Constants.BUNDLE_CLASSPATH);
+			if (bundleClassPath != null) {
+				ManifestEntry[] entries = ManifestEntry.parse(bundleClassPath);
+				for (int i = 0; i < entries.length; i++) {
+					String classPath = entries[i].getName();
+					if (classPath.startsWith("/")) {
+						classPath = classPath.substring(1);
+					}
+
+					if (classPath.endsWith(".jar")) {
+						names.add(classPath);
+					}
+				}
+			}
+		} catch (Exception e) {
+			/*
+			 * the headers are validated by the installer
+			 */
+		}
+
+		return names;
+	}
+
+	/*
+	 * 3.9  the libraries of the Bundle-NativeCode header
+	 */
+	private static Set getNativeCodeEntries(Dictionary headers) {
+		Set names = new HashSet();
+
+		try {
+			String bundleNativeCode = (String) headers.get(Constants.BUNDLE_NATIVECODE);
+			if (bundleNativeCode != null) {
+				ManifestEntry[] entries = ManifestEntry.parse(bundleNativeCode);
+				for (int i = 0; i < entries.length; i++) {
+					names.add(entries[i].getName());
+				}
+			}
+		} catch (Exception e) {
+		}
+
+		return names;
+	}
+
+	private void extract(InputStream is, String name) throws IOException {
+		File file = new File(extractFolder, name);
+		file.getParentFile().mkdirs();
+
+		MessageDigest md = createDigest();
+
+		OutputStream os = new FileOutputStream(file);
+		try {
+			byte[] buf = new byte[BUFFER_SIZE];
+
+			int n;
+			while ((n = is.read(buf, 0, buf.length)) != -1) {
+				md.update(buf, 0, n);
+
+				os.write(buf, 0, n);
+			}
+		} finally {
+			os.close();
+		}
+
+		extractedNames.add(name);
+
+		digestsByName.put(name, md.digest());
+	}
+
+	/*
+	 * The jars of the class path are moved to the blob store and added to the
+	 * blob table of the revision, the native libraries to the bundle cache: a
+	 * library can be loaded by one class loader only, hence the revisions
+	 * cannot share it.
+	 */
+	void moveExtractedEntries(File cache, BlobStore blobStore, Map blobs) throws IOException {
+		for (int i = 0; i < extractedNames.size(); i++) {
+			String name = (String) extractedNames.get(i);
+
+			File source = new File(extractFolder, name);
+
+			if (classPathEntries.contains(name)) {
+				String digest = BlobStore.toHex((byte[]) digestsByName.get(name));
+
+				blobStore.add(source, digest);
+
+				blobs.put(name, digest);
+
+				continue;
+			}
+
+			File target = new File(cache, name);
+			target.getParentFile().mkdirs();
+
+			if (!source.renameTo(target)) {
+				throw new IOException(new StringBuilder("Cannot move ").append(source).append(" to ").append(target).toString());
+			}
+		}
+
+		if (extractFolder.exists()) {
+			IOUtil.delete(extractFolder);
+		}
+	}
+
+	/*
+	 * null if the bundle file has no manifest
+	 */
+	Dictionary getHeaders() {
+		return headers;
+	}
+
+	String[] getEntryNames() {
+		return (String[]) entryNames.toArray(new String[entryNames.size()]);
+	}
+
+	byte[] getDigest() {
+		return digest;
+	}
+}
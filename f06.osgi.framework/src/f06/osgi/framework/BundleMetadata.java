@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework;
+
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.osgi.framework.Constants;
+
+import f06.util.ManifestEntry;
+import f06.util.WildcardPattern;
+
+/*
+ * Manifest headers of a bundle revision, parsed once when the revision is
+ * installed or fetched from the persistent storage. Class loading reads the
+ * parsed clauses instead of parsing the headers again, and so does the
+ * resolver.
+ *
+ * The headers read by class loading are optional: one that cannot be parsed is
+ * treated as if it were missing, as class loading did while it parsed them,
+ * and its error is kept to be reported, so that it does not prevent the bundle
+ * from being installed or fetched. The error of a header read by the resolver
+ * is thrown when its clauses are read, hence it fails the resolution as it did
+ * when the resolver parsed the header.
+ *
+ * Instances are immutable.
+ */
+class BundleMetadata {
+
+	private final static ManifestEntry[] NO_ENTRIES = new ManifestEntry[0];
+
+	/*
+	 * header name -> Exception
+	 */
+	private final Map errorsByHeader;
+
+	/*
+	 * header name -> Exception, for the headers read by the resolver
+	 */
+	private final Map resolutionErrorsByHeader;
+
+	/*
+	 * null when the header is missing
+	 */
+	private final ManifestEntry[] importPackages;
+
+	private final ManifestEntry[] exportPackages;
+
+	private final ManifestEntry[] requireBundles;
+
+	private final ManifestEntry[] dynamicImports;
+
+	private final WildcardPattern[] dynamicImportPatterns;
+
+	private final ManifestEntry[] nativeCode;
+
+	private final boolean lazyActivation;
+
+	/*
+	 * null when all the packages trigger the activation
+	 */
+	private final WildcardPattern[] activationIncludes;
+
+	private final WildcardPattern[] activationExcludes;
+
+	BundleMetadata(Dictionary headers) {
+		this.errorsByHeader = new LinkedHashMap();
+
+		this.resolutionErrorsByHeader = new HashMap();
+
+		this.importPackages = parseResolution(headers, Constants.IMPORT_PACKAGE);
+
+		this.exportPackages = parseResolution(headers, Constants.EXPORT_PACKAGE);
+
+		this.requireBundles = parseResolution(headers, Constants.REQUIRE_BUNDLE);
+
+		this.dynamicImports = parse(headers, Constants.DYNAMICIMPORT_PACKAGE);
+
+		this.dynamicImportPatterns = new WildcardPattern[dynamicImports.length];
+		for (int i = 0; i < dynamicImports.length; i++) {
+			dynamicImportPatterns[i] = WildcardPattern.compile(dynamicImports[i].getName());
+		}
+
+		this.nativeCode = parse(headers, Constants.BUNDLE_NATIVECODE);
+
+		/*
+		 * 4.4.6.2  Bundle-ActivationPolicy ::= policy ( ';' directive )*
+		 *          policy ::= 'lazy'
+		 *
+		 * A policy that cannot be parsed is still lazy, but no package
+		 * triggers the activation.
+		 */
+		this.lazyActivation = headers.get(Constants.BUNDLE_ACTIVATIONPOLICY) != null;
+
+		ManifestEntry[] entries = parse(headers, Constants.BUNDLE_ACTIVATIONPOLICY);
+		if (entries.length > 0) {
+			ManifestEntry entry = entries[0];
+
+			this.activationIncludes = entry.hasAttribute(Constants.INCLUDE_DIRECTIVE) ?
+					compile(entry.getAttributeValue(Constants.INCLUDE_DIRECTIVE)) :
+					null;
+
+			this.activationExcludes = entry.hasAttribute(Constants.EXCLUDE_DIRECTIVE) ?
+					compile(entry.getAttributeValue(Constants.EXCLUDE_DIRECTIVE)) :
+					new WildcardPattern[0];
+		} else {
+			this.activationIncludes = lazyActivation ? new WildcardPattern[0] : null;
+
+			this.activationExcludes = new WildcardPattern[0];
+		}
+	}
+
+	/*
+	 * An empty array if the header is missing or cannot be parsed.
+	 */
+	private ManifestEntry[] parse(Dictionary headers, String name) {
+		Object value = headers.get(name);
+		if (value == null) {
+			return NO_ENTRIES;
+		}
+
+		try {
+			ManifestEntry[] entries = ManifestEntry.parse(value);
+
+			return entries != null ? entries : NO_ENTRIES;
+		} catch (Exception e) {
+			errorsByHeader.put(name, e);
+
+			return NO_ENTRIES;
+		}
+	}
+
+	/*
+	 * null if the header is missing or cannot be parsed.
+	 */
+	private ManifestEntry[] parseResolution(Dictionary headers, String name) {
+		Object value = headers.get(name);
+		if (value == null) {
+			return null;
+		}
+
+		try {
+			return ManifestEntry.parse(value);
+		} catch (Exception e) {
+			resolutionErrorsByHeader.put(name, e);
+
+			return null;
+		}
+	}
+
+	private ManifestEntry[] getResolutionClauses(String name, ManifestEntry[] entries) throws Exception {
+		Exception e = (Exception) resolutionErrorsByHeader.get(name);
+		if (e != null) {
+			throw e;
+		}
+
+		return entries;
+	}
+
+	private static WildcardPattern[] compile(String value) {
+		String[] patterns = value.split("\\,");
+		for (int i = 0; i < patterns.length; i++) {
+			patterns[i] = patterns[i].trim();
+		}
+
+		return WildcardPattern.compile(patterns);
+	}
+
+	/*
+	 * header name -> Exception, for the headers that cannot be parsed
+	 */
+	Map getErrors() {
+		return errorsByHeader;
+	}
+
+	/*
+	 * 3.5.4  null if the bundle imports no package
+	 */
+	ManifestEntry[] getImportPackages() throws Exception {
+		return getResolutionClauses(Constants.IMPORT_PACKAGE, importPackages);
+	}
+
+	/*
+	 * 3.5.5  null if the bundle exports no package
+	 */
+	ManifestEntry[] getExportPackages() throws Exception {
+		return getResolutionClauses(Constants.EXPORT_PACKAGE, exportPackages);
+	}
+
+	/*
+	 * 3.13.1  null if the bundle requires no bundle
+	 */
+	ManifestEntry[] getRequireBundles() throws Exception {
+		return getResolutionClauses(Constants.REQUIRE_BUNDLE, requireBundles);
+	}
+
+	ManifestEntry[] getDynamicImports() {
+		return dynamicImports;
+	}
+
+	/*
+	 * 3.8.2  the package name of the i-th DynamicImport-Package clause may end
+	 * with a wildcard
+	 */
+	boolean isDynamicallyImported(int i, String pkgName) {
+		return dynamicImportPatterns[i].matches(pkgName);
+	}
+
+	ManifestEntry[] getNativeCode() {
+		return nativeCode;
+	}
+
+	boolean isLazyActivation() {
+		return lazyActivation;
+	}
+
+	/*
+	 * 4.4.6.2  include - A list of package names that must trigger the
+	 * activation when a class is loaded from any of these packages.
+	 *
+	 * exclude - A list of package names that must not trigger the activation
+	 * of the bundle when a class is loaded from any of these packages.
+	 */
+	boolean isActivationTriggered(String pkgName) {
+		if (WildcardPattern.matches(activationExcludes, pkgName)) {
+			return false;
+		}
+
+		return activationIncludes == null || WildcardPattern.matches(activationIncludes, pkgName);
+	}
+}
@@ -40,4 +40,16 @@ interface BundleURLClassPath {
 	public Enumeration getEntryPaths(String path);
 
 	public InputStream getEntryAsStream(int port, String name) throws IOException;
+
+	/*
+	 * Returns the content of the first entry with the given name along the
+	 * class path, null if there is none.
+	 */
+	public byte[] getEntryAsBytes(String name) throws IOException;
+
+	/*
+	 * Closes the jar contents, once the revision has been removed or the
+	 * framework stops.
+	 */
+	public void close();
 }
@@ -25,100 +25,129 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.jar.JarFile;
-import java.util.zip.ZipEntry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.Version;
+import org.osgi.service.log.LogService;
 
-import f06.util.TextUtil;
+import f06.util.WildcardPattern;
 
 /*
  * BundleContent is defined for each bundle (host and fragment bundle) and permits
  * to access to jar file content
+ *
+ * The jar contents are opened by Storage and never replaced, and they support
+ * concurrent readers, hence the content is read without locking.
  */
 class BundleURLClassPathImpl implements BundleURLClassPath {
 	
-	private class UnclosableInputStream extends InputStream {
-		
-		InputStream delegate;
-		
-		public UnclosableInputStream (InputStream delegate) throws IOException {
-			this.delegate = delegate;
-		}
-
-		public void close () throws IOException {
-			// XXX do nothing
-		}
-		
-		public int read() throws IOException {
-			return delegate.read();
-		}
-		
-		public int available() throws IOException {
-			return delegate.available();
-		}
-		
-		public int hashCode() {
-			return delegate.hashCode();
-		}
-		
-		public synchronized void mark(int readlimit) {
-			delegate.mark(readlimit);
-		}
-		
-		public boolean markSupported() {
-			return delegate.markSupported();
-		}
-		
-		public int read(byte[] b) throws IOException {
-			return delegate.read(b);
-		}
-		
-		public int read(byte[] b, int off, int len) throws IOException {
-			return delegate.read(b, off, len);
-		}
-		
-		public synchronized void reset() throws IOException {
-			delegate.reset();
-		}
-		
-		public long skip(long n) throws IOException {
-			return delegate.skip(n);
-		}
-	}
-
+	private final Framework framework;
 	
-	private Bundle bundle;
+	private final Bundle bundle;
 	
-	private Version version;
+	private final Version version;
 	
-	private String[] classPaths;
+	private final String[] classPaths;
 
-	private Map jarFilesByClassPath;
+	private final Map contentsByClassPath;
+	
+	/*
+	 * jar content name -> EntryIndex, built or loaded on first use
+	 */
+	private final Map indexesByContent;
 	
-	public BundleURLClassPathImpl(Bundle bundle, Version version, String[] classPaths, File cacheDir) throws IOException {
+	private final Object indexesLock;
+	
+	/*
+	 * host part of the entry URLs: bundle id.version
+	 */
+	private final String host;
+	
+	/*
+	 * contents[i] is the jar content of classPaths[i]
+	 */
+	public BundleURLClassPathImpl(Framework framework, Bundle bundle, Version version, String[] classPaths, JarContent[] contents) {
+		this.framework = framework;
+		
 		this.bundle = bundle;
 		
 		this.version = version;
 		
+		this.host = new StringBuilder(Long.toString(bundle.getBundleId())).append('.').append(version.toString()).toString();
+		
 		this.classPaths = classPaths;
 		
-		this.jarFilesByClassPath = new HashMap();
+		this.contentsByClassPath = new HashMap();
+		
+		this.indexesByContent = new ConcurrentHashMap();
+		
+		this.indexesLock = new Object();
 		
 		for (int i = 0; i < classPaths.length; i++) {
-			File file;
-			
-			String classPath = classPaths[i];
-			if (classPath.equals(".") || classPath.endsWith("/")) {
-				file = new File(cacheDir, Storage.BUNDLE_FILE);
-			} else {
-				file = new File(cacheDir, classPath);
+			contentsByClassPath.put(classPaths[i], contents[i]);
+		}
+	}
+	
+	/*
+	 * The index is stored in the bundle cache. Returns null if the entries of
+	 * the jar content cannot be read.
+	 */
+	private EntryIndex getEntryIndex(JarContent content) {
+		EntryIndex index = (EntryIndex) indexesByContent.get(content.getName());
+		if (index == null) {
+			synchronized (indexesLock) {
+				index = (EntryIndex) indexesByContent.get(content.getName());
+				if (index == null) {
+					File file = content.getFile();
+					
+					File indexFile = content.getIndexFile();
+					
+					index = EntryIndex.load(indexFile, file);
+					if (index == null) {
+						try {
+							index = EntryIndex.build(content);
+						} catch (IOException e) {
+							framework.log(LogService.LOG_WARNING, new StringBuilder("Cannot read the entries of ").append(content.getName()).toString(), e);
+							
+							/*
+							 * not cached, the jar is read again the next time
+							 */
+							return null;
+						}
+						
+						try {
+							index.store(indexFile, file);
+						} catch (IOException e) {
+							// the index is built again the next time
+						}
+					}
+					
+					indexesByContent.put(content.getName(), index);
+				}
 			}
-
-			jarFilesByClassPath.put(classPath, new JarFile(file));
 		}
+		
+		return index;
+	}
+	
+	/*
+	 * "" for the root directory, otherwise the path ending with '/'
+	 */
+	private static String toDirectory(String path) {
+		if (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		
+		if (path.length() > 0 && !path.endsWith("/")) {
+			path = path.concat("/");
+		}
+		
+		return path;
 	}
 	
 	private Object find(Class clazz, int port, String name) throws IOException {
@@ -138,17 +167,20 @@ class BundleURLClassPathImpl implements BundleURLClassPath {
 			}
 			
 			String classPath = classPaths[port - 1];
-			JarFile jarFile = (JarFile) jarFilesByClassPath.get(classPath);
+			JarContent content = (JarContent) contentsByClassPath.get(classPath);
 			if (!classPath.endsWith(".jar") && !classPath.equals(".")) {
 				if (!classPath.endsWith("/")) {
 					classPath = new StringBuilder(classPath).append('/').toString();
 				}
 				name = new StringBuilder(classPath).append(name).toString();
 			}
-			String host = new StringBuilder(Long.toString(bundle.getBundleId())).append('.').append(version.toString()).toString();
 
-			ZipEntry zipEntry = jarFile.getEntry(path0);
-			if (zipEntry != null) {
+			/*
+			 * the jar file is only read if it has the entry
+			 */
+			EntryIndex index = getEntryIndex(content);
+			
+			if (index != null ? index.contains(path0) : content.containsEntry(path0)) {
 				if (clazz == URL.class) {
 					String path1 = name;
 					if (!path1.startsWith("/")) {
@@ -156,7 +188,7 @@ class BundleURLClassPathImpl implements BundleURLClassPath {
 					}
 					 o = new URL(BundleURLStreamHandlerService.BUNDLE_PROTOCOL, host, port, path1, null);
 				} else if (clazz == InputStream.class) {
-					 o = jarFile.getInputStream(zipEntry);
+					 o = content.getInputStream(path0);
 				} else {
 					throw new IllegalArgumentException(new StringBuilder("Cannot find instance of ").append(clazz.getName()).toString());
 				}
@@ -166,7 +198,7 @@ class BundleURLClassPathImpl implements BundleURLClassPath {
 		return o;
 	}
 
-	public synchronized URL getEntry(String name) {
+	public URL getEntry(String name) {
 		URL u = null;
 		try {
 			u = (URL) find(URL.class, -1, name);
@@ -177,7 +209,7 @@ class BundleURLClassPathImpl implements BundleURLClassPath {
 		return u;
 	}
 
-	public synchronized Enumeration findEntries(String path, final String filePattern, boolean recurse) {
+	public Enumeration findEntries(String path, final String filePattern, boolean recurse) {
 		if (path == null) {
 			throw new NullPointerException();
 		}
@@ -211,8 +243,6 @@ class BundleURLClassPathImpl implements BundleURLClassPath {
 
 		String ws = builder.toString();
 		
-		String host = new StringBuilder(Long.toString(bundle.getBundleId())).append('.').append(version.toString()).toString();
-		
 		Collection c = new ArrayList();
 
 		try {
@@ -244,15 +274,31 @@ class BundleURLClassPathImpl implements BundleURLClassPath {
 					}
 				}
 			} else {
+				/*
+				 * JavaDoc  filePattern The file name pattern for selecting entries in the
+				 * specified path. The pattern is only matched against the last element of
+				 * the entry path and it supports substring matching, as specified in the
+				 * Filter specification, using the wildcard character ("*").
+				 */
+				String directory = toDirectory(path);
+				
+				WildcardPattern pattern = WildcardPattern.compile(filePattern == null ? "*" : filePattern);
+				
 				for (int i = 0; i < this.classPaths.length; i++) {
-					JarFile jarFile = (JarFile) jarFilesByClassPath.get(classPaths[i]);
-					Enumeration e = jarFile.entries();
-					while (e.hasMoreElements()) {
-						ZipEntry zipEntry = (ZipEntry) e.nextElement();
-						String name = zipEntry.getName();
-						if (TextUtil.wildcardCompare(ws, name) == 0) {
-							c.add(new URL(BundleURLStreamHandlerService.BUNDLE_PROTOCOL, host, i + 1, new StringBuilder("/").append(name).toString(), null));
-						}
+					JarContent content = (JarContent) contentsByClassPath.get(classPaths[i]);
+					
+					EntryIndex index = getEntryIndex(content);
+					if (index == null) {
+						continue;
+					}
+					
+					Collection names = new ArrayList();
+					index.findEntries(directory, pattern, recurse, names);
+					
+					Iterator it = names.iterator();
+					while (it.hasNext()) {
+						String name = (String) it.next();
+						c.add(new URL(BundleURLStreamHandlerService.BUNDLE_PROTOCOL, host, i + 1, new StringBuilder("/").append(name).toString(), null));
 					}
 				}
 			}
@@ -263,36 +309,83 @@ class BundleURLClassPathImpl implements BundleURLClassPath {
 		return c.isEmpty() ? null : Collections.enumeration(c);
 	}
 
-	public synchronized Enumeration getEntryPaths(String path) {
-		if (path.startsWith("/")) {
-			path = path.substring(1);
-		}
+	/*
+	 * JavaDoc  Returns an Enumeration of all the paths (String objects) to entries
+	 * within this bundle whose longest sub-path matches the specified path. (...)
+	 * Returned paths indicating subdirectory paths end with a "/".
+	 */
+	public Enumeration getEntryPaths(String path) {
+		String directory = toDirectory(path);
 		
-		Collection c = new ArrayList();
+		/*
+		 * more class path entries can refer to the same jar file
+		 */
+		Collection c = new LinkedHashSet();
 
 		for (int i = 0; i < this.classPaths.length; i++) {
-			JarFile jarFile = (JarFile) jarFilesByClassPath.get(classPaths[i]);
-			Enumeration e = jarFile.entries();
-			while (e.hasMoreElements()) {
-				ZipEntry zipEntry = (ZipEntry) e.nextElement();
-				String name = zipEntry.getName();
-				if (name.startsWith(path) && name.indexOf('/', path.length()) == -1) {
-					c.add(name);
-				}
+			JarContent content = (JarContent) contentsByClassPath.get(classPaths[i]);
+			
+			EntryIndex index = getEntryIndex(content);
+			if (index == null) {
+				continue;
+			}
+			
+			String[] children = index.getChildren(directory);
+			for (int j = 0; j < children.length; j++) {
+				c.add(children[j]);
 			}
 		}
 
 		return c.isEmpty() ? null : Collections.enumeration(c);
 	}
 
+	/*
+	 * Closing the stream releases the jar file it is read from.
+	 */
 	public InputStream getEntryAsStream(int port, String name) throws IOException {
 		InputStream is = (InputStream) find(InputStream.class, port, name);
 		
-		if (is != null) {
-			is = new UnclosableInputStream(is);
+		return is;
+	}
+	
+	public byte[] getEntryAsBytes(String name) throws IOException {
+		String path0 = name;
+		if (path0.startsWith("/")) {
+			path0 = path0.substring(1);
 		}
 		
-		return is;
+		byte[] b = null;
+		for (int i = 0; i < this.classPaths.length; i++) {
+			JarContent content = (JarContent) contentsByClassPath.get(classPaths[i]);
+			
+			EntryIndex index = getEntryIndex(content);
+			if (index != null && !index.contains(path0)) {
+				continue;
+			}
+			
+			b = content.getBytes(path0);
+			if (b != null) {
+				break;
+			}
+		}
+		
+		return b;
+	}
+	
+	public void close() {
+		/*
+		 * more class path entries can refer to the same jar content
+		 */
+		Iterator it = new HashSet(contentsByClassPath.values()).iterator();
+		while (it.hasNext()) {
+			JarContent content = (JarContent) it.next();
+			
+			try {
+				content.close();
+			} catch (IOException e) {
+				framework.log(LogService.LOG_WARNING, new StringBuilder("Cannot close ").append(content.getName()).toString(), e);
+			}
+		}
 	}
 	
 	public Bundle getBundle() {
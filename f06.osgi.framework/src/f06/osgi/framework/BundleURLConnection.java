@@ -55,7 +55,10 @@ public class BundleURLConnection extends URLConnection {
 				version = host.substring(i + 1);
 			}
 			
-			BundleURLClassPath classPath = framework.getBundleURLClassPath(bundle, Version.parseVersion(version));
+			BundleURLClassPath classPath = bundle != null ? framework.getBundleURLClassPath(bundle, Version.parseVersion(version)) : null;
+			if (classPath == null) {
+				throw new IOException(new StringBuilder("Bundle ").append(host).append(" has been removed.").toString());
+			}
 			
 			int port = url.getPort();
 			
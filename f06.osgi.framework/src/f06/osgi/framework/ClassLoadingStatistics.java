@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework;
+
+import org.osgi.framework.Bundle;
+
+/*
+ * Live counters of the bundle class loaders, registered by the system bundle
+ * as a service under this interface name.
+ *
+ * Counters are kept per bundle revision: they start from 0 when a bundle is
+ * resolved again after an update or a refresh. Bundles without a class loader
+ * (fragments, bundles not resolved or whose classes have not been loaded yet)
+ * report 0.
+ */
+public interface ClassLoadingStatistics {
+
+	/*
+	 * 3.8.4  delegation steps: java.* and boot delegation
+	 */
+	public final static int BOOT_DELEGATION = 0;
+
+	/*
+	 * packages wired through Import-Package or a previous dynamic import
+	 */
+	public final static int IMPORT_PACKAGE = 1;
+
+	public final static int REQUIRE_BUNDLE = 2;
+
+	/*
+	 * bundle class path of the host and of its fragments
+	 */
+	public final static int LOCAL = 3;
+
+	public final static int DYNAMIC_IMPORT = 4;
+
+	public final static int STEPS = 5;
+
+	public long getDefinedClasses(Bundle bundle);
+
+	/*
+	 * bytes of the class files defined
+	 */
+	public long getBytesRead(Bundle bundle);
+
+	/*
+	 * class and resource lookups that reached the given step
+	 */
+	public long getLookups(Bundle bundle, int step);
+
+	/*
+	 * nanoseconds spent in the given step, including the time spent by the
+	 * class loaders the lookups are delegated to
+	 */
+	public long getLookupTime(Bundle bundle, int step);
+
+	/*
+	 * lookups that went through the whole search and failed
+	 */
+	public long getMisses(Bundle bundle);
+
+	/*
+	 * failed lookups answered by the negative cache
+	 */
+	public long getNegativeCacheHits(Bundle bundle);
+
+	public long getResourceCacheHits(Bundle bundle);
+
+	/*
+	 * 4.4.6.2  activations triggered by a class load
+	 */
+	public long getLazyActivations(Bundle bundle);
+
+	/*
+	 * Jar files of the bundle cache
+	 */
+	public int getOpenJarFiles();
+
+	public long getJarFileOpens();
+
+	public long getJarFileEvictions();
+
+	public double getJarFileHitRate();
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+class ClassLoadingStatisticsImpl implements ClassLoadingStatistics {
+
+	private Framework framework;
+
+	public ClassLoadingStatisticsImpl(BundleContext context) {
+		this.framework = (Framework) context.getBundle();
+	}
+
+	/*
+	 * does not create the class loader
+	 */
+	private BundleClassLoader getClassLoader(Bundle bundle) {
+		if (bundle instanceof HostBundle) {
+			return ((HostBundle) bundle).classLoader;
+		}
+
+		return null;
+	}
+
+	private static void checkStep(int step) {
+		if (step < 0 || step >= STEPS) {
+			throw new IllegalArgumentException(new StringBuilder("Invalid step ").append(step).toString());
+		}
+	}
+
+	public long getDefinedClasses(Bundle bundle) {
+		BundleClassLoader classLoader = getClassLoader(bundle);
+
+		return classLoader != null ? classLoader.getDefinedClasses() : 0L;
+	}
+
+	public long getBytesRead(Bundle bundle) {
+		BundleClassLoader classLoader = getClassLoader(bundle);
+
+		return classLoader != null ? classLoader.getBytesRead() : 0L;
+	}
+
+	public long getLookups(Bundle bundle, int step) {
+		checkStep(step);
+
+		BundleClassLoader classLoader = getClassLoader(bundle);
+
+		return classLoader != null ? classLoader.getLookups(step) : 0L;
+	}
+
+	public long getLookupTime(Bundle bundle, int step) {
+		checkStep(step);
+
+		BundleClassLoader classLoader = getClassLoader(bundle);
+
+		return classLoader != null ? classLoader.getLookupTime(step) : 0L;
+	}
+
+	public long getMisses(Bundle bundle) {
+		BundleClassLoader classLoader = getClassLoader(bundle);
+
+		return classLoader != null ? classLoader.getNegativeCacheMisses() : 0L;
+	}
+
+	public long getNegativeCacheHits(Bundle bundle) {
+		BundleClassLoader classLoader = getClassLoader(bundle);
+
+		return classLoader != null ? classLoader.getNegativeCacheHits() : 0L;
+	}
+
+	public long getResourceCacheHits(Bundle bundle) {
+		BundleClassLoader classLoader = getClassLoader(bundle);
+
+		return classLoader != null ? classLoader.getResourceCacheHits() : 0L;
+	}
+
+	public long getLazyActivations(Bundle bundle) {
+		BundleClassLoader classLoader = getClassLoader(bundle);
+
+		return classLoader != null ? classLoader.getLazyActivations() : 0L;
+	}
+
+	public int getOpenJarFiles() {
+		return framework.getJarFilePool().getOpenCount();
+	}
+
+	public long getJarFileOpens() {
+		return framework.getJarFilePool().getOpens();
+	}
+
+	public long getJarFileEvictions() {
+		return framework.getJarFilePool().getEvictions();
+	}
+
+	public double getJarFileHitRate() {
+		return framework.getJarFilePool().getHitRate();
+	}
+}
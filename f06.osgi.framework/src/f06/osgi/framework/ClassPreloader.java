@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogService;
+
+import f06.util.SerialExecutorService;
+
+/*
+ * Startup class preloading.
+ *
+ * While the framework is starting, the class loaders record the classes they
+ * define. When the framework is active the names are stored with each bundle
+ * revision (the preload profile). On the next startup, once the bundles have
+ * been resolved, the classes of the profiles are loaded by a pool of threads
+ * while the bundles are being started, so that the activators find most of
+ * their classes already defined.
+ */
+class ClassPreloader {
+
+	private Framework framework;
+
+	private int threads;
+
+	private volatile boolean recording;
+
+	private volatile boolean cancelled;
+
+	public ClassPreloader(Framework framework) {
+		this.framework = framework;
+
+		this.threads = Runtime.getRuntime().availableProcessors();
+
+		String str = framework.getProperty(Constants0.PRELOAD_THREADS);
+		if (str != null) {
+			this.threads = Math.max(1, Integer.parseInt(str.trim()));
+		}
+
+		this.recording = true;
+	}
+
+	boolean isRecording() {
+		return recording;
+	}
+
+	/*
+	 * Must be invoked by the thread starting the framework, before the bundles
+	 * are started.
+	 */
+	void start(Bundle[] bundles) {
+		List profiledBundles = new ArrayList();
+
+		Map classNamesByBundle = new HashMap();
+
+		for (int i = 0; i < bundles.length; i++) {
+			if (!(bundles[i] instanceof HostBundle) || bundles[i].getBundleId() == 0L) {
+				continue;
+			}
+
+			String[] classNames = framework.getPreloadProfile(bundles[i]);
+			if (classNames != null && classNames.length > 0) {
+				profiledBundles.add(bundles[i]);
+
+				classNamesByBundle.put(bundles[i], classNames);
+			}
+		}
+
+		if (profiledBundles.isEmpty()) {
+			return;
+		}
+
+		/*
+		 * the bundles having a profile were resolved during the last startup,
+		 * they are resolved now as Bundle.loadClass would do, unless their
+		 * wiring has been restored
+		 */
+		List unresolvedBundles = new ArrayList();
+		
+		for (int i = 0; i < profiledBundles.size(); i++) {
+			Bundle bundle = (Bundle) profiledBundles.get(i);
+			if (bundle.getState() == Bundle.INSTALLED) {
+				unresolvedBundles.add(bundle);
+			}
+		}
+		
+		if (!unresolvedBundles.isEmpty()) {
+			framework.resolveBundles((Bundle[]) unresolvedBundles.toArray(new Bundle[unresolvedBundles.size()]));
+		}
+
+		SerialExecutorService[] executors = null;
+
+		int next = 0;
+
+		for (int i = 0; i < profiledBundles.size(); i++) {
+			HostBundle bundle = (HostBundle) profiledBundles.get(i);
+			if (bundle.getState() != Bundle.RESOLVED) {
+				continue;
+			}
+
+			final String[] classNames = (String[]) classNamesByBundle.get(bundle);
+
+			/*
+			 * the class loader is created here, not by the preloading threads
+			 */
+			final BundleClassLoader classLoader = (BundleClassLoader) bundle.getClassLoader();
+
+			if (executors == null) {
+				executors = new SerialExecutorService[threads];
+				for (int j = 0; j < threads; j++) {
+					executors[j] = new SerialExecutorService(new StringBuilder(getClass().getName()).append(" #").append(j).toString());
+					executors[j].setExceptionHandler(framework.getExecutorExceptionHandler());
+				}
+			}
+
+			executors[next++ % threads].execute(new Runnable() {
+				public void run() {
+					for (int j = 0; j < classNames.length && !cancelled; j++) {
+						classLoader.preload(classNames[j]);
+					}
+				}
+			});
+		}
+
+		if (executors != null) {
+			for (int i = 0; i < executors.length; i++) {
+				final SerialExecutorService executor = executors[i];
+
+				/*
+				 * the thread terminates once its profiles have been loaded
+				 */
+				executor.execute(new Runnable() {
+					public void run() {
+						executor.shutdown();
+					}
+				});
+			}
+		}
+	}
+
+	/*
+	 * Stores the classes recorded since the class loaders have been created,
+	 * and stops recording.
+	 */
+	void storeProfiles(Bundle[] bundles) {
+		recording = false;
+
+		for (int i = 0; i < bundles.length; i++) {
+			if (!(bundles[i] instanceof HostBundle) || bundles[i].getBundleId() == 0L) {
+				continue;
+			}
+
+			BundleClassLoader classLoader = ((HostBundle) bundles[i]).classLoader;
+			if (classLoader == null) {
+				continue;
+			}
+
+			/*
+			 * a bundle which defined no class keeps its previous profile
+			 */
+			String[] classNames = classLoader.getDefinedClassNames();
+			if (classNames == null || classNames.length == 0) {
+				continue;
+			}
+
+			try {
+				framework.setPreloadProfile(bundles[i], classNames);
+			} catch (IOException e) {
+				framework.log(LogService.LOG_WARNING, new StringBuilder("Cannot store the preload profile of ").append(bundles[i]).toString(), e);
+			}
+		}
+	}
+
+	/*
+	 * The threads are not interrupted: an interrupted read would close the
+	 * channels of the bundle cache.
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+}
@@ -32,4 +32,18 @@ interface Constants0 {
 	final static String SYSTEM_BUNDLE_COPYRIGHT                 = "(c) 2006-2009 Davide Raccagni";
 
 	final static String FRAMEWORK_VENDOR                        = "f06.osgi.framework";
+
+	final static String EVENT_QUEUE_CAPACITY                    = "f06.osgi.framework.event.queue.capacity";
+	final static String EVENT_QUEUE_POLICY                      = "f06.osgi.framework.event.queue.policy";
+	final static String EVENT_QUEUE_POLICY_BLOCK                = "block";
+	final static String EVENT_QUEUE_POLICY_CALLER_RUNS          = "callerRuns";
+	final static String EVENT_QUEUE_POLICY_DISCARD              = "discard";
+	final static String EVENTADMIN_THREADS                      = "f06.osgi.framework.eventadmin.threads";
+	final static String JARFILE_POOL_CAPACITY                   = "f06.osgi.framework.jarfile.pool.capacity";
+	final static String PRELOAD                                 = "f06.osgi.framework.preload";
+	final static String PRELOAD_THREADS                         = "f06.osgi.framework.preload.threads";
+	final static String WIRING_SNAPSHOT                         = "f06.osgi.framework.wiring.snapshot";
+	final static String STORAGE_FETCH_THREADS                   = "f06.osgi.framework.storage.fetch.threads";
+	final static String STORAGE_JOURNAL_SYNC                    = "f06.osgi.framework.storage.journal.sync";
+	final static String STORAGE_JOURNAL_FLUSH_DELAY             = "f06.osgi.framework.storage.journal.flush.delay";
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import f06.util.WildcardPattern;
+
+/*
+ * Directory tree of the entries of a jar file, so that directory listings and
+ * pattern queries only visit the directories involved instead of every entry of
+ * the jar.
+ *
+ * Directories are named with a trailing '/', the root directory is "". Directories
+ * the jar has no entry for are implied by the entries they contain, they are
+ * listed but not contained.
+ *
+ * The index is stored in the bundle cache next to the jar file together with the
+ * jar length and modification time, and is built again if they do not match.
+ */
+class EntryIndex {
+
+	private final static int MAGIC = 0xF06E1D02;
+
+	private final static String[] EMPTY = new String[0];
+
+	/*
+	 * names of the jar entries
+	 */
+	private Set entries;
+
+	/*
+	 * entry and directory names
+	 */
+	private Set names;
+
+	/*
+	 * directory -> sorted names of its files and subdirectories
+	 */
+	private Map childrenByDirectory;
+
+	EntryIndex(String[] entryNames) {
+		this.entries = new HashSet(Arrays.asList(entryNames));
+
+		this.names = new HashSet();
+
+		Map children = new HashMap();
+
+		for (int i = 0; i < entryNames.length; i++) {
+			add(children, entryNames[i]);
+		}
+
+		this.childrenByDirectory = new HashMap();
+
+		Iterator it = children.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry entry = (Map.Entry) it.next();
+
+			Collection c = (Collection) entry.getValue();
+
+			String[] names = (String[]) c.toArray(new String[c.size()]);
+			Arrays.sort(names);
+
+			childrenByDirectory.put(entry.getKey(), names);
+		}
+	}
+
+	private void add(Map children, String name) {
+		while (names.add(name)) {
+			String parent = getParent(name);
+
+			Set c = (Set) children.get(parent);
+			if (c == null) {
+				c = new HashSet();
+				children.put(parent, c);
+			}
+			c.add(name);
+
+			if (parent.length() == 0) {
+				break;
+			}
+
+			/*
+			 * implied directory
+			 */
+			name = parent;
+		}
+	}
+
+	private static String getParent(String name) {
+		int index = name.lastIndexOf('/', name.length() - 2);
+
+		return index == -1 ? "" : name.substring(0, index + 1);
+	}
+
+	static EntryIndex build(JarContent content) throws IOException {
+		return new EntryIndex(content.getEntryNames());
+	}
+
+	/*
+	 * Returns null if the index has not been stored or if the jar file has
+	 * changed since.
+	 */
+	static EntryIndex load(File indexFile, File jarFile) {
+		if (!indexFile.exists()) {
+			return null;
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				if (
+						in.readInt() != MAGIC ||
+						in.readLong() != jarFile.length() ||
+						in.readLong() != jarFile.lastModified()
+					) {
+					return null;
+				}
+
+				String[] names = new String[in.readInt()];
+				for (int i = 0; i < names.length; i++) {
+					names[i] = in.readUTF();
+				}
+
+				return new EntryIndex(names);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			/*
+			 * truncated or corrupted, it is built again
+			 */
+			return null;
+		}
+	}
+
+	/*
+	 * The index is written to a temporary file first, so that a crash never
+	 * leaves a partial index behind.
+	 */
+	void store(File indexFile, File jarFile) throws IOException {
+		File temp = new File(indexFile.getPath().concat(".tmp"));
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeLong(jarFile.length());
+			out.writeLong(jarFile.lastModified());
+
+			out.writeInt(entries.size());
+
+			Iterator it = entries.iterator();
+			while (it.hasNext()) {
+				out.writeUTF((String) it.next());
+			}
+		} finally {
+			out.close();
+		}
+
+		indexFile.delete();
+
+		if (!temp.renameTo(indexFile)) {
+			temp.delete();
+
+			throw new IOException(new StringBuilder("Cannot store ").append(indexFile).toString());
+		}
+	}
+
+	/*
+	 * As JarFile.getEntry, a directory entry is also found by its name without
+	 * the trailing '/'.
+	 */
+	boolean contains(String name) {
+		if (entries.contains(name)) {
+			return true;
+		}
+
+		return !name.endsWith("/") && entries.contains(name.concat("/"));
+	}
+
+	/*
+	 * Files and subdirectories of the given directory, the root directory is "".
+	 */
+	String[] getChildren(String directory) {
+		String[] children = (String[]) childrenByDirectory.get(directory);
+
+		return children != null ? children : EMPTY;
+	}
+
+	/*
+	 * Adds to c the entries in the given directory whose last path element
+	 * matches the pattern, visiting the subdirectories if recurse is true.
+	 */
+	void findEntries(String directory, WildcardPattern pattern, boolean recurse, Collection c) {
+		String[] children = getChildren(directory);
+
+		for (int i = 0; i < children.length; i++) {
+			String child = children[i];
+
+			boolean isDirectory = child.endsWith("/");
+
+			String name = child.substring(directory.length(), isDirectory ? child.length() - 1 : child.length());
+			if (pattern.matches(name)) {
+				c.add(child);
+			}
+
+			if (recurse && isDirectory) {
+				findEntries(child, pattern, recurse, c);
+			}
+		}
+	}
+}
@@ -15,30 +15,149 @@
  */
 package f06.osgi.framework;
 
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
+import org.osgi.service.event.EventHandler;
+import org.osgi.service.event.TopicPermission;
+import org.osgi.service.log.LogService;
+
+import f06.util.SerialExecutorService;
 
 /*
  * Reactor Design Pattern
+ *
+ * Synchronous events are delivered by the publishing thread, so that any number of
+ * threads can send events at the same time. Asynchronous events are queued on a pool
+ * of serial executors: a publisher thread is always bound to the same executor, hence
+ * the events it posts are delivered in the order they have been posted.
  */
 public class EventAdminImpl implements EventAdmin {
-		
+
 	private BundleContext context;
 
+	private Framework framework;
+
+	private SerialExecutorService[] executors;
+
+	private volatile boolean shutting_down;
+
 	public EventAdminImpl(BundleContext context) {
 		this.context = context;
+
+		this.framework = (Framework) context.getBundle();
+
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		String str = context.getProperty(Constants0.EVENTADMIN_THREADS);
+		if (str != null) {
+			try {
+				threads = Math.max(1, Integer.parseInt(str.trim()));
+			} catch (NumberFormatException e) {
+				framework.log(LogService.LOG_WARNING, new StringBuilder("Invalid number of event admin threads: ").append(str).append(", ").append(threads).append(" threads are used.").toString(), e);
+			}
+		}
+
+		int capacity = EventDispatcher.readQueueCapacity(framework);
+
+		int policy = EventDispatcher.readQueuePolicy(framework);
+
+		executors = new SerialExecutorService[threads];
+		for (int i = 0; i < threads; i++) {
+			executors[i] = new SerialExecutorService(new StringBuilder(getClass().getName()).append(" #").append(i).toString(), capacity, policy);
+			executors[i].setExceptionHandler(framework.getExecutorExceptionHandler());
+		}
 	}
-	
-	public void postEvent(Event event) {
-		Framework framework = (Framework) context.getBundle();
 
-		framework.postEvent(event);
+	public void postEvent(final Event event) {
+		checkPublishPermission(event);
+
+		if (shutting_down) {
+			return;
+		}
+
+		/*
+		 * the handlers are determined when the event is posted, not when it is delivered
+		 */
+		final ServiceReference[] references = framework.getServiceReferences(event);
+		if (references == null) {
+			return;
+		}
+
+		SerialExecutorService executor = executors[(int) (Thread.currentThread().getId() % executors.length)];
+
+		boolean queued = executor.execute(new Runnable() {
+			public void run() {
+				deliverEvent(event, references);
+			}
+		});
+
+		if (!queued && !shutting_down) {
+			framework.log(LogService.LOG_WARNING, new StringBuilder("Event queue is full, event ")
+				.append(event.getTopic())
+				.append(" discarded.").toString(), null);
+		}
     }
-	
-	public synchronized void sendEvent(Event event) {
-		Framework framework = (Framework) context.getBundle();
 
-		framework.sendEvent(event);
+	public void sendEvent(Event event) {
+		checkPublishPermission(event);
+
+		if (shutting_down) {
+			return;
+		}
+
+		ServiceReference[] references = framework.getServiceReferences(event);
+		if (references != null) {
+			deliverEvent(event, references);
+		}
+	}
+
+	void shutdown() {
+		shutting_down = true;
+
+		for (int i = 0; i < executors.length; i++) {
+			executors[i].shutdown();
+		}
+	}
+
+	private void checkPublishPermission(Event event) {
+		SecurityManager securityManager = System.getSecurityManager();
+		if (securityManager != null) {
+			securityManager.checkPermission(new TopicPermission(event.getTopic(), TopicPermission.PUBLISH));
+		}
+	}
+
+	private void deliverEvent(Event event, ServiceReference[] references) {
+		for (int i = 0; i < references.length; i++) {
+			ServiceReference reference = references[i];
+
+			/*
+			 * the handler could have been unregistered, or its bundle stopped, in the meanwhile
+			 */
+			Bundle bundle = reference.getBundle();
+			if (bundle == null || (bundle.getState() & (Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING)) == 0) {
+				continue;
+			}
+
+			EventHandler eventHandler = (EventHandler) context.getService(reference);
+			if (eventHandler != null) {
+				/*
+				 * a failing handler must not prevent the event from being delivered
+				 * to the other handlers
+				 */
+				try {
+					eventHandler.handleEvent(event);
+				} catch (Throwable t) {
+					framework.log(LogService.LOG_ERROR, new StringBuilder("Event handler ")
+						.append(reference)
+						.append(" failed handling event ")
+						.append(event.getTopic()).toString(), t);
+				}
+			}
+
+			context.ungetService(reference);
+		}
 	}
 }
@@ -16,9 +16,12 @@
 package f06.osgi.framework;
 
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
+import org.osgi.service.log.LogService;
 
 import f06.util.SerialExecutorService;
 
@@ -26,7 +29,7 @@ import f06.util.SerialExecutorService;
  * Reactor Design Pattern
  */
 
-class EventDispatcher {
+class EventDispatcher implements EventQueueStatistics {
 	
 	private BundleContext context;
 
@@ -36,13 +39,65 @@ class EventDispatcher {
 
 	protected volatile boolean shutting_down;
 
+	/*
+	 * set when an event has been discarded because the asynchronous queue was full
+	 */
+	private volatile boolean overflowed;
+
+	private long reportedDiscardedEvents;
+
 	
 	public EventDispatcher(BundleContext context) {
 		this.context = context;
 
 		syncExecutor = new SerialExecutorService("");
 
-		asyncExecutor = new SerialExecutorService("");
+		Framework framework = (Framework) context.getBundle();
+
+		asyncExecutor = new SerialExecutorService("", readQueueCapacity(framework), readQueuePolicy(framework));
+
+		syncExecutor.setExceptionHandler(framework.getExecutorExceptionHandler());
+
+		asyncExecutor.setExceptionHandler(framework.getExecutorExceptionHandler());
+	}
+	
+	/*
+	 * An invalid capacity is logged and the queue is unbounded, as it is by
+	 * default.
+	 */
+	static int readQueueCapacity(Framework framework) {
+		String str = framework.getProperty(Constants0.EVENT_QUEUE_CAPACITY);
+		if (str != null) {
+			try {
+				return Integer.parseInt(str.trim());
+			} catch (NumberFormatException e) {
+				framework.log(LogService.LOG_WARNING, new StringBuilder("Invalid event queue capacity: ").append(str).append(", the queue is unbounded.").toString(), e);
+			}
+		}
+
+		return 0;
+	}
+
+	/*
+	 * An unknown policy is logged and the publishers block, as they do by
+	 * default.
+	 */
+	static int readQueuePolicy(Framework framework) {
+		int policy = SerialExecutorService.BLOCK;
+
+		String str = framework.getProperty(Constants0.EVENT_QUEUE_POLICY);
+		if (str != null) {
+			str = str.trim();
+			if (str.equals(Constants0.EVENT_QUEUE_POLICY_CALLER_RUNS)) {
+				policy = SerialExecutorService.CALLER_RUNS;
+			} else if (str.equals(Constants0.EVENT_QUEUE_POLICY_DISCARD)) {
+				policy = SerialExecutorService.DISCARD;
+			} else if (!str.equals(Constants0.EVENT_QUEUE_POLICY_BLOCK)) {
+				framework.log(LogService.LOG_WARNING, new StringBuilder("Unknown event queue policy: ").append(str).append(", the publishers block.").toString());
+			}
+		}
+		
+		return policy;
 	}
 	
 	public void syncDispatchEvent(final Event event) {
@@ -62,11 +117,62 @@ class EventDispatcher {
 			return;
 		}
 
-		asyncExecutor.execute(new Runnable() {
+		boolean queued = asyncExecutor.execute(new Runnable() {
 			public void run() {
 				dispatchEvent(event);
+
+				if (overflowed) {
+					dispatchOverflowWarning();
+				}
 			}
 		});
+
+		if (!queued && !shutting_down) {
+			overflowed = true;
+		}
+	}
+
+	/*
+	 * The warning is dispatched by the asynchronous thread itself, the queue
+	 * being full is the reason it has to be raised.
+	 */
+	private void dispatchOverflowWarning() {
+		overflowed = false;
+
+		long discardedEvents = asyncExecutor.getDiscardedCount();
+
+		BundleException e = new BundleException(new StringBuilder("Event queue is full (capacity=")
+			.append(asyncExecutor.getCapacity())
+			.append("), ")
+			.append(discardedEvents - reportedDiscardedEvents)
+			.append(" event(s) discarded.").toString());
+
+		reportedDiscardedEvents = discardedEvents;
+
+		Framework framework = (Framework) context.getBundle();
+		FrameworkEvent frameworkEvent = new FrameworkEvent(FrameworkEvent.WARNING, framework, e);
+
+		dispatchEvent(EventFactory.createEvent(frameworkEvent));
+	}
+
+	public int getQueueCapacity() {
+		return asyncExecutor.getCapacity();
+	}
+
+	public int getQueueDepth() {
+		return asyncExecutor.getQueueDepth();
+	}
+
+	public double getEnqueueRate() {
+		return asyncExecutor.getEnqueueRate();
+	}
+
+	public long getOldestEventAge() {
+		return asyncExecutor.getOldestTaskAge();
+	}
+
+	public long getDiscardedEvents() {
+		return asyncExecutor.getDiscardedCount();
 	}
 	
 	public void shutdown() {
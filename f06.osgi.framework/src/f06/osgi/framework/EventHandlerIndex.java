@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.log.LogService;
+
+import f06.util.ArrayUtil;
+
+/*
+ * Index of the registered EventHandler services by topic.
+ *
+ * Readers work on immutable snapshots, writers replace them under
+ * indexLock, so looking up the handlers of a topic does not lock.
+ */
+class EventHandlerIndex {
+
+	static class Entry {
+
+		ServiceReference reference;
+
+		/*
+		 * compiled once, when the handler is registered or modified
+		 */
+		Filter filter;
+
+		/*
+		 * the handler has been registered with an invalid filter and must
+		 * not receive any event
+		 */
+		boolean invalid;
+
+		String[] topics;
+
+		Entry(ServiceReference reference) {
+			this.reference = reference;
+		}
+	}
+
+	private static final Entry[] EMPTY = new Entry[0];
+
+	private Framework framework;
+
+	private Object indexLock;
+
+	private Map entriesByReference;
+
+	/*
+	 * topic -> Entry[]
+	 */
+	private volatile Map exactEntries;
+
+	/*
+	 * topic prefix ending with '/' -> Entry[]
+	 */
+	private volatile Map prefixEntries;
+
+	/*
+	 * handlers registered for the * topic
+	 */
+	private volatile Entry[] allTopicsEntries;
+
+	EventHandlerIndex(Framework framework) {
+		this.framework = framework;
+
+		this.indexLock = new Object();
+
+		this.entriesByReference = new HashMap();
+
+		this.exactEntries = new HashMap();
+
+		this.prefixEntries = new HashMap();
+
+		this.allTopicsEntries = EMPTY;
+	}
+
+	void add(ServiceReference reference) {
+		Entry entry = createEntry(reference);
+
+		synchronized (indexLock) {
+			Entry entry0 = (Entry) entriesByReference.put(reference, entry);
+			if (entry0 != null) {
+				removeEntry(entry0);
+			}
+
+			addEntry(entry);
+		}
+	}
+
+	/*
+	 * topics and filter are read again
+	 */
+	void modified(ServiceReference reference) {
+		add(reference);
+	}
+
+	void remove(ServiceReference reference) {
+		synchronized (indexLock) {
+			Entry entry = (Entry) entriesByReference.remove(reference);
+			if (entry != null) {
+				removeEntry(entry);
+			}
+		}
+	}
+
+	/*
+	 * Returns the handlers whose topics match the given one. The same entry
+	 * is returned once even if more of its topics match.
+	 */
+	Entry[] getEntries(String topic) {
+		Entry[] entries = (Entry[]) exactEntries.get(topic);
+		if (entries == null) {
+			entries = EMPTY;
+		}
+
+		Map prefixEntries = this.prefixEntries;
+		if (!prefixEntries.isEmpty()) {
+			for (int i = topic.indexOf('/'); i != -1; i = topic.indexOf('/', i + 1)) {
+				Entry[] entries0 = (Entry[]) prefixEntries.get(topic.substring(0, i + 1));
+				if (entries0 != null) {
+					entries = merge(entries, entries0);
+				}
+			}
+		}
+
+		Entry[] allTopicsEntries = this.allTopicsEntries;
+		if (allTopicsEntries.length > 0) {
+			entries = merge(entries, allTopicsEntries);
+		}
+
+		return entries;
+	}
+
+	private static Entry[] merge(Entry[] entries, Entry[] entries0) {
+		if (entries.length == 0) {
+			return entries0;
+		}
+
+		for (int i = 0; i < entries0.length; i++) {
+			if (!ArrayUtil.contains(entries, entries0[i])) {
+				entries = (Entry[]) ArrayUtil.add(entries, entries0[i]);
+			}
+		}
+
+		return entries;
+	}
+
+	private Entry createEntry(ServiceReference reference) {
+		Entry entry = new Entry(reference);
+
+		Object topics = reference.getProperty(EventConstants.EVENT_TOPIC);
+		if (topics instanceof String) {
+			entry.topics = new String[] { (String) topics };
+		} else if (topics instanceof String[]) {
+			entry.topics = (String[]) topics;
+		} else if (topics instanceof Collection) {
+			entry.topics = (String[]) ((Collection) topics).toArray(new String[0]);
+		} else {
+			/*
+			 * 113.4  Event Handlers which have not specified the EVENT_TOPIC service
+			 * property must not receive events.
+			 */
+			entry.topics = new String[0];
+		}
+
+		String eventFilter = (String) reference.getProperty(EventConstants.EVENT_FILTER);
+		if (eventFilter != null) {
+			try {
+				entry.filter = org.osgi.framework.FrameworkUtil.createFilter(eventFilter);
+			} catch (InvalidSyntaxException e) {
+				entry.invalid = true;
+
+				framework.log(LogService.LOG_WARNING, new StringBuilder("Invalid ")
+					.append(EventConstants.EVENT_FILTER)
+					.append(" of event handler ")
+					.append(reference)
+					.append(": ")
+					.append(eventFilter).toString(), e);
+			}
+		}
+
+		return entry;
+	}
+
+	private void addEntry(Entry entry) {
+		if (entry.invalid) {
+			return;
+		}
+
+		Map exactEntries = new HashMap(this.exactEntries);
+
+		Map prefixEntries = new HashMap(this.prefixEntries);
+
+		Entry[] allTopicsEntries = this.allTopicsEntries;
+
+		for (int i = 0; i < entry.topics.length; i++) {
+			String topic = entry.topics[i];
+
+			if (topic.equals(Constants0.WILDCARD)) {
+				if (!ArrayUtil.contains(allTopicsEntries, entry)) {
+					allTopicsEntries = (Entry[]) ArrayUtil.add(allTopicsEntries, entry);
+				}
+			} else if (topic.endsWith("/*")) {
+				put(prefixEntries, topic.substring(0, topic.length() - 1), entry);
+			} else {
+				put(exactEntries, topic, entry);
+			}
+		}
+
+		this.exactEntries = exactEntries;
+
+		this.prefixEntries = prefixEntries;
+
+		this.allTopicsEntries = allTopicsEntries;
+	}
+
+	private void removeEntry(Entry entry) {
+		if (entry.invalid) {
+			return;
+		}
+
+		Map exactEntries = new HashMap(this.exactEntries);
+
+		Map prefixEntries = new HashMap(this.prefixEntries);
+
+		for (int i = 0; i < entry.topics.length; i++) {
+			String topic = entry.topics[i];
+
+			if (topic.endsWith("/*")) {
+				remove(prefixEntries, topic.substring(0, topic.length() - 1), entry);
+			} else if (!topic.equals(Constants0.WILDCARD)) {
+				remove(exactEntries, topic, entry);
+			}
+		}
+
+		this.exactEntries = exactEntries;
+
+		this.prefixEntries = prefixEntries;
+
+		this.allTopicsEntries = (Entry[]) ArrayUtil.remove(allTopicsEntries, entry);
+	}
+
+	private static void put(Map entriesByTopic, String topic, Entry entry) {
+		Entry[] entries = (Entry[]) entriesByTopic.get(topic);
+		if (entries == null) {
+			entries = new Entry[] { entry };
+		} else if (!ArrayUtil.contains(entries, entry)) {
+			entries = (Entry[]) ArrayUtil.add(entries, entry);
+		}
+
+		entriesByTopic.put(topic, entries);
+	}
+
+	private static void remove(Map entriesByTopic, String topic, Entry entry) {
+		Entry[] entries = (Entry[]) entriesByTopic.get(topic);
+		if (entries != null) {
+			entries = (Entry[]) ArrayUtil.remove(entries, entry);
+			if (entries.length == 0) {
+				entriesByTopic.remove(topic);
+			} else {
+				entriesByTopic.put(topic, entries);
+			}
+		}
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework;
+
+/*
+ * Live gauges of the asynchronous event queue, registered by the system bundle
+ * as a service under this interface name.
+ */
+public interface EventQueueStatistics {
+
+	/*
+	 * 0 if the queue is unbounded
+	 */
+	public int getQueueCapacity();
+
+	public int getQueueDepth();
+
+	/*
+	 * events per second
+	 */
+	public double getEnqueueRate();
+
+	/*
+	 * milliseconds the oldest pending event has been waiting for
+	 */
+	public long getOldestEventAge();
+
+	public long getDiscardedEvents();
+}
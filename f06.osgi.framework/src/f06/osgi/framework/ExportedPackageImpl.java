@@ -19,6 +19,8 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.Version;
 import org.osgi.service.packageadmin.ExportedPackage;
 
+import f06.util.WildcardPattern;
+
 class ExportedPackageImpl implements ExportedPackage {
 
 	private Bundle exportingBundle;
@@ -43,6 +45,13 @@ class ExportedPackageImpl implements ExportedPackage {
 	
 	private String[] exclude;
 	
+	/*
+	 * include and exclude compiled once, they are checked on each class load
+	 */
+	private WildcardPattern[] includePatterns;
+	
+	private WildcardPattern[] excludePatterns;
+	
 	// XXX out of specs
 	final ClassLoader classLoader;
 	
@@ -57,6 +66,8 @@ class ExportedPackageImpl implements ExportedPackage {
 		this.mandatory = mandatory;
 		this.include = include;
 		this.exclude = exclude;
+		this.includePatterns = WildcardPattern.compile(include);
+		this.excludePatterns = WildcardPattern.compile(exclude);
 		this.removalPending = false;
 		// XXX
 		this.classLoader = classLoader;
@@ -205,4 +216,16 @@ class ExportedPackageImpl implements ExportedPackage {
 	ClassLoader getClassLoader0() {
 		return classLoader;
 	}
+	
+	/*
+	 * 3.6.7  A class name must match an entry in the include list and must not match
+	 * an entry in the exclude list to be visible to importers. The directives apply
+	 * to class names only, resources are always visible.
+	 */
+	boolean isClassVisible0(String className) {
+		String simpleName = className.substring(className.lastIndexOf('.') + 1);
+		
+		return WildcardPattern.matches(includePatterns, simpleName) && 
+			!WildcardPattern.matches(excludePatterns, simpleName);
+	}
 }
@@ -29,13 +29,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Dictionary;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.osgi.framework.AdminPermission;
 import org.osgi.framework.AllServiceListener;
@@ -78,6 +77,7 @@ import org.osgi.util.xml.XMLParserActivator;
 import f06.util.ArrayUtil;
 import f06.util.CaseSensitiveDictionary;
 import f06.util.ManifestEntry;
+import f06.util.PackageTrie;
 import f06.util.TextUtil;
 
 /*
@@ -146,6 +146,22 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 		}
 	}
 	
+	/*
+	 * the version identifies the bundle revision the domain was created for
+	 */
+	static class RevisionProtectionDomain {
+		
+		final Version version;
+		
+		final ProtectionDomain protectionDomain;
+		
+		RevisionProtectionDomain(Version version, ProtectionDomain protectionDomain) {
+			this.version = version;
+			
+			this.protectionDomain = protectionDomain;
+		}
+	}
+	
 	private Storage storage;
 
 	private ServiceRegistry serviceRegistry;
@@ -156,12 +172,23 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 	 * Bundle(s)
 	 */
 
-	private Set bootDelegatedPackageNames;
+	private PackageTrie bootDelegatedPackageNames;
 
 	private Object stopLock;
 	
 	private FrameworkEvent stopEvent; 
 
+	/*
+	 * PermissionAdmin
+	 */
+
+	/*
+	 * Bundle -> RevisionProtectionDomain
+	 */
+	private Map protectionDomainsByBundle;
+	
+	private Object protectionDomainsLock;
+
 	/*
 	 * PackageAdmin
 	 */
@@ -180,6 +207,13 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 	
 	private EventDispatcher eventDispatcher;
 	
+	private EventAdminImpl eventAdmin;
+	
+	/*
+	 * null if the startup classes are not preloaded
+	 */
+	private ClassPreloader preloader;
+	
 	/*
 	 * Log
 	 */
@@ -193,6 +227,10 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 		
 		this.stopLock = new Object();
 		
+		this.protectionDomainsByBundle = new ConcurrentHashMap();
+		
+		this.protectionDomainsLock = new Object();
+		
 		/*
 		 * 8.2.1  A start level of 0 (zero) is the state in which the Framework has either
 		 * not been launched.
@@ -242,6 +280,10 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 
 			this.logServiceTracker = new ServiceTracker(context, LogService.class.getName(), null);
 
+			preloader = Boolean.valueOf(getProperty(Constants0.PRELOAD)).booleanValue() ?
+					new ClassPreloader(this) :
+					null;
+			
 			initPersistentStorage();
 			
 			initBootDelegatedPackageNames();
@@ -254,9 +296,16 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 			 * Framework Services 
 			 */
 			
+			eventAdmin = new EventAdminImpl(context);
+			
 			/* serviceRegistration = */context.registerService( 
 					new String[] { EventAdmin.class.getName() }, 
-					new EventAdminImpl(context), 
+					eventAdmin, 
+					null);
+
+			/* serviceRegistration = */context.registerService( 
+					new String[] { EventQueueStatistics.class.getName() }, 
+					eventDispatcher, 
 					null);
 			
 			/*
@@ -281,8 +330,19 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 					packageAdmin, 
 					null);
 
+			/* serviceRegistration = */context.registerService( 
+					new String[] { ClassLoadingStatistics.class.getName() }, 
+					new ClassLoadingStatisticsImpl(context), 
+					null);
+
 			resolve();
 
+			/*
+			 * the bundles resolved at the last shutdown are wired again as they
+			 * were, if none has changed since
+			 */
+			restoreWiring();
+
 			/*
 			 * 10.1.3  The Permission Admin service is registered by the Frameworks system bundle
 			 * under the org.osgi.service.permissionadmin.PermissionAdmin interface.
@@ -327,20 +387,75 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 		this.storage.fetchBundles();
 	}
 	
+	/*
+	 * The wiring snapshot is not used under a security manager, since the
+	 * permissions are checked while the bundles are resolved.
+	 */
+	private boolean isWiringSnapshotEnabled() {
+		String str = getProperty(Constants0.WIRING_SNAPSHOT);
+		
+		return (str == null || Boolean.valueOf(str.trim()).booleanValue()) && System.getSecurityManager() == null;
+	}
+	
+	private void restoreWiring() {
+		WiringSnapshot snapshot;
+		try {
+			snapshot = storage.getWiringSnapshot();
+		} catch (IOException e) {
+			log(LogService.LOG_WARNING, "Cannot read the wiring snapshot.", e);
+			
+			return;
+		}
+		
+		if (snapshot == null || !isWiringSnapshotEnabled()) {
+			return;
+		}
+		
+		if (!snapshot.fingerprint.equals(WiringSnapshot.fingerprint(this, storage.getBundles()))) {
+			log(LogService.LOG_DEBUG, "The bundles have changed since the wiring snapshot was taken.");
+			
+			return;
+		}
+		
+		try {
+			if (!((PackageAdminImpl) packageAdmin).restoreWiring(snapshot)) {
+				log(LogService.LOG_WARNING, "Cannot restore the wiring snapshot, the bundles are resolved again.");
+			}
+		} catch (RuntimeException e) {
+			log(LogService.LOG_WARNING, "Cannot restore the wiring snapshot, the bundles are resolved again.", e);
+		}
+	}
+	
+	/*
+	 * Only once the bundles have been stopped
+	 */
+	private void storeWiring() {
+		if (getState() != STOPPING || !isWiringSnapshotEnabled()) {
+			return;
+		}
+		
+		try {
+			WiringSnapshot snapshot = ((PackageAdminImpl) packageAdmin).getWiringSnapshot();
+			if (snapshot != null) {
+				storage.setWiringSnapshot(snapshot);
+			}
+		} catch (Exception e) {
+			log(LogService.LOG_WARNING, "Cannot store the wiring snapshot.", e);
+		}
+	}
+	
 	/*
 	 * ClassLoader(s)
 	 */
 	
+	/*
+	 * 3.8.3  The org.osgi.framework.bootdelegation property value is a list of
+	 * package names: "com.acme" delegates that package, "com.acme.*" its
+	 * subpackages and "*" all packages.
+	 */
 	private void initBootDelegatedPackageNames() {
 	
-		bootDelegatedPackageNames = new TreeSet(new Comparator() {
-			public int compare(Object o1, Object o2) {
-				String s = (String) o1;
-				String ws = (String) o2;
-	
-				return TextUtil.wildcardCompare(ws, s);
-			}
-		});
+		PackageTrie bootDelegatedPackageNames = new PackageTrie();
 	
 		BundleContext context = getBundleContext();
 		
@@ -349,12 +464,18 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 			try {
 				ManifestEntry[] entries = ManifestEntry.parse(frameworkBootDelegation);
 				for (int i = 0; i < entries.length; i++) {
-					bootDelegatedPackageNames.add(entries[i].getName());
+					try {
+						bootDelegatedPackageNames.add(entries[i].getName());
+					} catch (IllegalArgumentException e) {
+						log(LogService.LOG_WARNING, e.getMessage(), e);
+					}
 				}
 			} catch (Exception e) {
 				log(LogService.LOG_ERROR, e.getMessage(), e);
 			}
 		}		
+		
+		this.bootDelegatedPackageNames = bootDelegatedPackageNames;
 	}
 
 	public FrameworkEvent waitForStop(long timeout) {
@@ -444,8 +565,14 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 		/*
 		 * 4.7.2  3. Event handling is disabled.
 		 */
+		this.eventAdmin.shutdown();
+
 		this.eventDispatcher.shutdown();
 		
+		storeWiring();
+		
+		storage.close();
+		
 		setState(Bundle.RESOLVED);
 		
 		setBundleContext(null);
@@ -501,6 +628,14 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 			
 			Bundle[] bundles = storage.getBundles();
 			
+			/*
+			 * the classes the bundles defined during the last startup are loaded
+			 * in background while the bundles are started
+			 */
+			if (preloader != null) {
+				preloader.start(bundles);
+			}
+			
 			for (int i = 1; i < bundles.length; i++) {
 				if (isBundlePersistentlyStarted(bundles[i])) {
 					try {
@@ -531,6 +666,10 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 			 */ 
 			setState(Bundle.ACTIVE);
 
+			if (preloader != null) {
+				preloader.storeProfiles(storage.getBundles());
+			}
+
 			/*
 			 * 4.7.1  5. A Framework event of type FrameworkEvent.STARTED is broadcast.
 			 */
@@ -565,6 +704,10 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 		 */
 		setState(Bundle.STOPPING);
 		
+		if (preloader != null) {
+			preloader.cancel();
+		}
+		
 		/* 
 		 * 4.7.2  2. All ACTIVE bundles are stopped as described in the Bundle.stop method,
 		 * except that their persistently recorded state indicates that they must be
@@ -611,6 +754,31 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 		return storage.getHeaders(bundle);
 	}
 	
+	BundleMetadata getBundleMetadata(Bundle bundle) {
+		return storage.getBundleMetadata(bundle);
+	}
+	
+	JarFilePool getJarFilePool() {
+		return storage.getJarFilePool();
+	}
+	
+	/*
+	 * class loaders record the classes they define until the framework is active
+	 */
+	boolean isPreloadProfileRecorded() {
+		ClassPreloader preloader = this.preloader;
+		
+		return preloader != null && preloader.isRecording();
+	}
+	
+	String[] getPreloadProfile(Bundle bundle) {
+		return storage.getPreloadProfile(bundle);
+	}
+	
+	void setPreloadProfile(Bundle bundle, String[] classNames) throws IOException {
+		storage.setPreloadProfile(bundle, classNames);
+	}
+	
 	void update(Bundle bundle, InputStream is) throws BundleException {
 		storage.update(bundle, is);
 	}
@@ -690,11 +858,17 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 
 	void remove(Bundle bundle) {
 		storage.remove(bundle);
+		
+		protectionDomainsByBundle.remove(bundle);
 	}
 
 	void setRemovalPending(Bundle bundle) {
 		storage.setRemovalPending(bundle);
 	}
+
+	void closeStaleClassPaths(Bundle bundle) {
+		storage.closeStaleClassPaths(bundle);
+	}
 	
 	File getDataFile(Bundle bundle, String filename) {
 		return storage.getDataFile(bundle, filename);
@@ -1001,7 +1175,39 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 		return serviceRegistry.getUsingBundles(reference);
 	}	
 
+	/*
+	 * The protection domain of a bundle revision is created once and then shared
+	 * by all the classes it defines, until the permissions of the bundle change.
+	 */
 	ProtectionDomain getProtectionDomain(Bundle bundle) throws Exception {
+		RevisionProtectionDomain revisionProtectionDomain = (RevisionProtectionDomain) protectionDomainsByBundle.get(bundle);
+		if (revisionProtectionDomain == null || !revisionProtectionDomain.version.equals(bundle.getVersion())) {
+			synchronized (protectionDomainsLock) {
+				revisionProtectionDomain = (RevisionProtectionDomain) protectionDomainsByBundle.get(bundle);
+				if (revisionProtectionDomain == null || !revisionProtectionDomain.version.equals(bundle.getVersion())) {
+					revisionProtectionDomain = new RevisionProtectionDomain(bundle.getVersion(), createProtectionDomain(bundle));
+					
+					protectionDomainsByBundle.put(bundle, revisionProtectionDomain);
+				}
+			}
+		}
+		
+		return revisionProtectionDomain.protectionDomain;
+	}
+	
+	private void invalidateProtectionDomains(String location) {
+		synchronized (protectionDomainsLock) {
+			Iterator it = protectionDomainsByBundle.keySet().iterator();
+			while (it.hasNext()) {
+				Bundle bundle = (Bundle) it.next();
+				if (location == null || location.equals(bundle.getLocation())) {
+					it.remove();
+				}
+			}
+		}
+	}
+	
+	private ProtectionDomain createProtectionDomain(Bundle bundle) throws Exception {
 		BundleContext context = getBundleContext();
 		
 		ServiceReference permissionAdminReference = context.getServiceReference(PermissionAdmin.class.getName());
@@ -1335,12 +1541,23 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 		log(level, message, null);
 	}
 	
+	/*
+	 * Logs the exceptions thrown by the commands of the framework executors.
+	 */
+	Thread.UncaughtExceptionHandler getExecutorExceptionHandler() {
+		return new Thread.UncaughtExceptionHandler() {
+			public void uncaughtException(Thread t, Throwable e) {
+				log(LogService.LOG_ERROR, new StringBuilder("Exception thrown by a command of thread ").append(t.getName()).toString(), e);
+			}
+		};
+	}
+	
 	/*
 	 * ClassLoader(s)
 	 */
 	
 	boolean isBootDelegated(String pkgName) {
-		return bootDelegatedPackageNames.contains(pkgName);
+		return bootDelegatedPackageNames.matches(pkgName);
 	}	
 
 	BundleClassLoader createBundleClassLoader(Bundle host) {
@@ -1391,6 +1608,10 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 	void unresolveBundle(Bundle bundle) {
 		((PackageAdminImpl) packageAdmin).unresolveBundle(bundle);
 	}
+	
+	long getWiringGeneration() {
+		return ((PackageAdminImpl) packageAdmin).getWiringGeneration();
+	}
 
 	
 	int getBundleType(Bundle bundle) {
@@ -1517,11 +1738,11 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 
 	
 	public ExportedPackage[] getExportedPackages(Bundle bundle) {
-		return packageAdmin.getExportedPackages(bundle);
+		return ((PackageAdminImpl) packageAdmin).getExportedPackages0(bundle);
 	}
 
 	public ExportedPackage[] getExportedPackages(String name) {
-		return packageAdmin.getExportedPackages(name);
+		return ((PackageAdminImpl) packageAdmin).getExportedPackages0(name);
 	}
 
 	/*
@@ -1593,10 +1814,14 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 	
 	void removePermissions(String location) throws IOException {
 		storage.removePermissions(location);
+		
+		invalidateProtectionDomains(location);
 	}
 
 	void removeDefaultPermissions() throws IOException {
 		storage.removeDefaultPermissions();
+		
+		invalidateProtectionDomains(null);
 	}
 	
 	PermissionInfo[] getPermissions(String location) {
@@ -1609,6 +1834,11 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 
 	public void setDefaultPermissions(PermissionInfo[] permissions) {
 		storage.setDefaultPermissions(permissions);
+		
+		/*
+		 * 10.1.3 the bundles with no specific permissions use the default ones
+		 */
+		invalidateProtectionDomains(null);
 	}
 
 	public void setPermissions(String location, PermissionInfo[] permissions) {
@@ -1617,5 +1847,7 @@ public class Framework extends HostBundle implements org.osgi.framework.launch.F
 		}
 
 		storage.setPermissions(location, permissions);
+		
+		invalidateProtectionDomains(location);
 	}
 }
@@ -37,9 +37,6 @@ import org.osgi.service.log.LogService;
 import org.osgi.service.packageadmin.ExportedPackage;
 import org.osgi.service.packageadmin.RequiredBundle;
 
-import f06.util.ManifestEntry;
-import f06.util.TextUtil;
-
 /*
  * 3.2  A bundle is deployed as a Java ARchive (JAR) file. JAR files are used to store
  * applications and their resources in a standard ZIP-based file format. This format is defined
@@ -289,8 +286,7 @@ class HostBundle extends AbstractBundle {
 		setState(STARTING);
 		
         if (framework.isBundleActivationPolicyUsed(this)) {
-        	String activationPolicy = (String) getHeaders().get(Constants.BUNDLE_ACTIVATIONPOLICY);
-        	if (activationPolicy != null) {
+        	if (framework.getBundleMetadata(this).isLazyActivation()) {
     			/*
     			 * 4.3.7.1  The LAZY_ACTIVATION event is fired.
     			 *   
@@ -406,6 +402,11 @@ class HostBundle extends AbstractBundle {
 			if (getState() == UNINSTALLED) {
 				throw new BundleException(new StringBuilder(this.toString()).append(" has been uninstalled while bundle start was running.").toString());
 			}
+		} else {
+			/*
+			 * no activator to wait for, the bundle can be started again once stopped
+			 */
+			setActivationTriggered(false);
 		}
 		
 		/*
@@ -869,51 +870,6 @@ class HostBundle extends AbstractBundle {
 		return activationTriggered;
 	}
 
-	boolean isActivationTriggered(String pkgName) {
-    	boolean matched = true;
-
-    	String activationPolicy = (String) getHeaders().get(Constants.BUNDLE_ACTIVATIONPOLICY);
-    	
-    	if (activationPolicy != null) {
-			try {
-				ManifestEntry entry = ManifestEntry.parse(activationPolicy)[0];
-				
-				if (entry.hasAttribute(Constants.EXCLUDE_DIRECTIVE)) {
-					String[] exclude = entry.getAttributeValue(Constants.EXCLUDE_DIRECTIVE).split("\\,");
-					for (int i = 0; i < exclude.length; i++) {
-						String path = exclude[i];
-						if (TextUtil.wildcardCompare(path, pkgName) == 0) {
-							matched = false;
-							
-							break;
-						}
-					}
-				}
-				
-				if (matched) {
-					String[] include;
-					if (entry.hasAttribute(Constants.INCLUDE_DIRECTIVE)) {
-						include = entry.getAttributeValue(Constants.INCLUDE_DIRECTIVE).split("\\,");
-						for (int i = 0; i < include.length; i++) {
-							String path = include[i];
-							if (TextUtil.wildcardCompare(path, pkgName) != 0) {
-								matched = false;
-								
-								break;
-							}
-						}
-					}
-				}
-			} catch (Exception e) {
-				framework.log(LogService.LOG_ERROR, e.getMessage(), e);
-				
-				matched = false;
-			}
-    	}
-		
-		return matched;
-	}
-
 	protected void setActivationTriggered(boolean activationTriggered) {
 		this.activationTriggered = activationTriggered;
 	}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Entries of a Bundle-ClassPath jar, either a jar file of the bundle cache or a
+ * jar stored inside the bundle file.
+ */
+interface JarContent {
+
+	/*
+	 * identifies the content among the ones of the framework
+	 */
+	public String getName();
+
+	/*
+	 * the file the content is read from, the entry index is valid as long as
+	 * it does not change
+	 */
+	public File getFile();
+
+	public File getIndexFile();
+
+	public String[] getEntryNames() throws IOException;
+
+	public boolean containsEntry(String name) throws IOException;
+
+	/*
+	 * Returns null if there is no such entry.
+	 */
+	public InputStream getInputStream(String name) throws IOException;
+
+	/*
+	 * Returns null if there is no such entry, otherwise an array as large as
+	 * the entry.
+	 */
+	public byte[] getBytes(String name) throws IOException;
+
+	/*
+	 * Invoked once the revision the content belongs to has been removed or
+	 * the framework stops, the content is not read afterwards.
+	 */
+	public void close() throws IOException;
+}
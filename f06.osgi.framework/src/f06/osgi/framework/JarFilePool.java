@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarFile;
+
+import org.osgi.service.log.LogService;
+
+/*
+ * Open jar files of the bundle cache, shared by all the bundle class paths.
+ *
+ * At most capacity jar files are kept open: when the pool is full the least
+ * recently used jar file that is not in use is closed, and it is opened again
+ * the next time it is acquired. A jar file is in use from acquire to release,
+ * therefore it is never closed while an entry is read.
+ *
+ * A jar file already open is acquired and released without locking, the pool
+ * lock is held only to evict.
+ */
+class JarFilePool {
+
+	/*
+	 * users < 0 once the jar file has been closed
+	 */
+	private final static int CLOSED = -1;
+
+	static class PooledJarFile {
+
+		private final File file;
+
+		private final JarFile jarFile;
+
+		private final AtomicInteger users;
+
+		/*
+		 * value of the pool clock when the jar file was last acquired
+		 */
+		private volatile long lastAccess;
+
+		/*
+		 * removed from the pool, closed as soon as it is not in use
+		 */
+		private volatile boolean retired;
+
+		PooledJarFile(File file, JarFile jarFile) {
+			this.file = file;
+
+			this.jarFile = jarFile;
+
+			this.users = new AtomicInteger();
+		}
+
+		JarFile getJarFile() {
+			return jarFile;
+		}
+
+		/*
+		 * Returns false if the jar file has been closed in the meantime.
+		 */
+		private boolean acquire() {
+			int n;
+			do {
+				n = users.get();
+				if (n < 0) {
+					return false;
+				}
+			} while (!users.compareAndSet(n, n + 1));
+
+			return true;
+		}
+
+		/*
+		 * Returns true if the jar file was not in use, in that case it cannot
+		 * be acquired anymore.
+		 */
+		private boolean tryClose() {
+			return users.compareAndSet(0, CLOSED);
+		}
+	}
+
+	private final Framework framework;
+
+	private final int capacity;
+
+	/*
+	 * File -> PooledJarFile
+	 */
+	private final ConcurrentMap pooledJarFilesByFile;
+
+	/*
+	 * removed from the pool while in use, e.g. by a stream never closed
+	 */
+	private final Set retiredJarFiles;
+
+	private final Object poolLock;
+
+	private final AtomicLong clock;
+
+	private final AtomicLong hits;
+
+	private final AtomicLong opens;
+
+	private final AtomicLong evictions;
+
+	/*
+	 * capacity <= 0 means no limit
+	 */
+	JarFilePool(Framework framework, int capacity) {
+		this.framework = framework;
+
+		this.capacity = capacity;
+
+		this.pooledJarFilesByFile = new ConcurrentHashMap();
+
+		this.retiredJarFiles = Collections.synchronizedSet(new HashSet());
+
+		this.poolLock = new Object();
+
+		this.clock = new AtomicLong();
+
+		this.hits = new AtomicLong();
+
+		this.opens = new AtomicLong();
+
+		this.evictions = new AtomicLong();
+	}
+
+	/*
+	 * Every call must be followed by a call to release.
+	 */
+	PooledJarFile acquire(File file) throws IOException {
+		PooledJarFile pooledJarFile = (PooledJarFile) pooledJarFilesByFile.get(file);
+		if (pooledJarFile != null && !pooledJarFile.retired && pooledJarFile.acquire()) {
+			pooledJarFile.lastAccess = clock.incrementAndGet();
+
+			hits.incrementAndGet();
+
+			return pooledJarFile;
+		}
+
+		/*
+		 * the central directory is read without holding the pool lock
+		 */
+		PooledJarFile newPooledJarFile = new PooledJarFile(file, new JarFile(file));
+		newPooledJarFile.users.set(1);
+		newPooledJarFile.lastAccess = clock.incrementAndGet();
+
+		opens.incrementAndGet();
+
+		while (true) {
+			pooledJarFile = (PooledJarFile) pooledJarFilesByFile.putIfAbsent(file, newPooledJarFile);
+			if (pooledJarFile == null) {
+				break;
+			}
+
+			if (!pooledJarFile.retired && pooledJarFile.acquire()) {
+				/*
+				 * opened by another thread in the meantime
+				 */
+				close(newPooledJarFile.jarFile);
+
+				pooledJarFile.lastAccess = clock.incrementAndGet();
+
+				return pooledJarFile;
+			}
+
+			/*
+			 * closed in the meantime
+			 */
+			if (pooledJarFilesByFile.replace(file, pooledJarFile, newPooledJarFile)) {
+				break;
+			}
+		}
+
+		evict();
+
+		return newPooledJarFile;
+	}
+
+	void release(PooledJarFile pooledJarFile) {
+		if (pooledJarFile.users.decrementAndGet() != 0) {
+			return;
+		}
+
+		if (pooledJarFile.retired) {
+			if (pooledJarFile.tryClose()) {
+				retiredJarFiles.remove(pooledJarFile);
+
+				close(pooledJarFile.jarFile);
+			}
+		} else if (capacity > 0 && pooledJarFilesByFile.size() > capacity) {
+			evict();
+		}
+	}
+
+	/*
+	 * Closes the least recently used jar files not in use while the pool is
+	 * over capacity. Jar files in use may keep the pool over capacity until
+	 * they are released.
+	 */
+	private void evict() {
+		if (capacity <= 0) {
+			return;
+		}
+
+		synchronized (poolLock) {
+			while (pooledJarFilesByFile.size() > capacity) {
+				PooledJarFile lru = null;
+
+				Iterator it = pooledJarFilesByFile.values().iterator();
+				while (it.hasNext()) {
+					PooledJarFile pooledJarFile = (PooledJarFile) it.next();
+					if (pooledJarFile.users.get() == 0 && (lru == null || pooledJarFile.lastAccess < lru.lastAccess)) {
+						lru = pooledJarFile;
+					}
+				}
+
+				if (lru == null) {
+					break;
+				}
+
+				/*
+				 * otherwise acquired in the meantime, the next one is looked for
+				 */
+				if (lru.tryClose()) {
+					pooledJarFilesByFile.remove(lru.file, lru);
+
+					close(lru.jarFile);
+
+					evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Removes the jar file from the pool, e.g. once the revision reading it has
+	 * been removed. It is closed at once if it is not in use, otherwise when
+	 * it is released; a class path still reading the file opens it again.
+	 */
+	void close(File file) {
+		PooledJarFile pooledJarFile = (PooledJarFile) pooledJarFilesByFile.remove(file);
+		if (pooledJarFile == null) {
+			return;
+		}
+
+		pooledJarFile.retired = true;
+
+		retiredJarFiles.add(pooledJarFile);
+
+		/*
+		 * otherwise closed by the last release
+		 */
+		if (pooledJarFile.tryClose()) {
+			close(pooledJarFile.jarFile);
+		}
+
+		if (pooledJarFile.users.get() < 0) {
+			retiredJarFiles.remove(pooledJarFile);
+		}
+	}
+
+	/*
+	 * Closes every jar file, also the ones in use, since the framework is
+	 * stopping: the entries being read fail.
+	 */
+	void closeAll() {
+		List pooledJarFiles = new ArrayList(pooledJarFilesByFile.values());
+
+		synchronized (retiredJarFiles) {
+			pooledJarFiles.addAll(retiredJarFiles);
+
+			retiredJarFiles.clear();
+		}
+
+		for (int i = 0; i < pooledJarFiles.size(); i++) {
+			PooledJarFile pooledJarFile = (PooledJarFile) pooledJarFiles.get(i);
+
+			pooledJarFilesByFile.remove(pooledJarFile.file, pooledJarFile);
+
+			pooledJarFile.retired = true;
+
+			if (pooledJarFile.users.getAndSet(CLOSED) >= 0) {
+				close(pooledJarFile.jarFile);
+			}
+		}
+	}
+
+	private void close(JarFile jarFile) {
+		try {
+			jarFile.close();
+		} catch (IOException e) {
+			framework.log(LogService.LOG_WARNING, new StringBuilder("Cannot close ").append(jarFile.getName()).toString(), e);
+		}
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	int getOpenCount() {
+		return pooledJarFilesByFile.size();
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getOpens() {
+		return opens.get();
+	}
+
+	long getEvictions() {
+		return evictions.get();
+	}
+
+	/*
+	 * hits / (hits + opens), 1 if no jar file has been acquired yet
+	 */
+	double getHitRate() {
+		long hits = this.hits.get();
+
+		long total = hits + opens.get();
+
+		return total == 0L ? 1D : (double) hits / total;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+
+import f06.util.ReopeningChannel;
+import f06.util.ZipDirectory;
+
+/*
+ * A jar stored without compression inside the bundle file: its entries are
+ * read in place, at the offset the jar has in the bundle file, so that it does
+ * not need to be extracted to the bundle cache.
+ */
+class NestedJarContent implements JarContent {
+
+	private final File bundleFile;
+
+	private final ReopeningChannel channel;
+
+	private final String path;
+
+	private final File cache;
+
+	private final ZipDirectory directory;
+
+	private NestedJarContent(File bundleFile, ReopeningChannel channel, String path, File cache, ZipDirectory directory) {
+		this.bundleFile = bundleFile;
+
+		this.channel = channel;
+
+		this.path = path;
+
+		this.cache = cache;
+
+		this.directory = directory;
+	}
+
+	/*
+	 * Returns null if the jar is compressed in the bundle file, in that case it
+	 * has to be extracted. The bundle file is kept open until the content is
+	 * closed.
+	 */
+	static NestedJarContent open(File bundleFile, String path, File cache) throws IOException {
+		ReopeningChannel channel = new ReopeningChannel(bundleFile);
+
+		try {
+			ZipDirectory outer = ZipDirectory.read(channel, 0L, channel.size());
+
+			ZipDirectory.Entry entry = outer.getEntry(path);
+			if (entry == null) {
+				throw new IOException(new StringBuilder("classpath ").append(path).append(" not found").toString());
+			}
+
+			if (entry.getMethod() != ZipEntry.STORED) {
+				channel.close();
+
+				return null;
+			}
+
+			ZipDirectory inner = ZipDirectory.read(channel, outer.getDataOffset(entry), entry.getSize());
+
+			return new NestedJarContent(bundleFile, channel, path, cache, inner);
+		} catch (IOException e) {
+			channel.close();
+
+			throw e;
+		}
+	}
+
+	public String getName() {
+		return new StringBuilder(bundleFile.getPath()).append("!/").append(path).toString();
+	}
+
+	public File getFile() {
+		return bundleFile;
+	}
+
+	public File getIndexFile() {
+		return new File(cache, path.concat(".index"));
+	}
+
+	public String[] getEntryNames() {
+		return directory.getNames();
+	}
+
+	public boolean containsEntry(String name) {
+		return directory.getEntry(name) != null;
+	}
+
+	public InputStream getInputStream(String name) throws IOException {
+		ZipDirectory.Entry entry = directory.getEntry(name);
+
+		return entry != null ? directory.getInputStream(entry) : null;
+	}
+
+	public byte[] getBytes(String name) throws IOException {
+		ZipDirectory.Entry entry = directory.getEntry(name);
+
+		return entry != null ? directory.getBytes(entry) : null;
+	}
+
+	public void close() throws IOException {
+		directory.close();
+
+		channel.close();
+	}
+}
@@ -23,7 +23,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.osgi.framework.AdminPermission;
 import org.osgi.framework.Bundle;
@@ -42,7 +43,6 @@ import org.osgi.service.packageadmin.RequiredBundle;
 
 import f06.util.ArrayUtil;
 import f06.util.ManifestEntry;
-import f06.util.TextUtil;
 import f06.util.SerialExecutorService;
 
 /*
@@ -77,12 +77,28 @@ class PackageAdminImpl implements PackageAdmin {
 	
 	private SerialExecutorService executor;
 
+	/*
+	 * package name -> ExportedPackage[] sorted by descending version
+	 * 
+	 * exporting bundle -> ExportedPackage[]
+	 * 
+	 * The arrays are replaced, never modified, so they are read without
+	 * locking; exportedPackagesLock serializes the writers.
+	 */
 	private Map exportedPackagesByName;
 
+	private Map exportedPackagesByBundle;
+
 	private Map requiredBundlesBySymbolicName;
 		
 	private Object exportedPackagesLock;
 	
+	/*
+	 * incremented each time bundles are resolved or unresolved, class loaders
+	 * drop the lookups they failed with an older generation
+	 */
+	private AtomicLong wiringGeneration;
+	
 
 	public PackageAdminImpl(BundleContext context) {
 		this.framework = (Framework) context.getBundle();
@@ -92,20 +108,18 @@ class PackageAdminImpl implements PackageAdmin {
 		this.changedBundlesLock = new Object();
 		
 		this.executor = new SerialExecutorService(new StringBuilder(getClass().getName()).append(" refreshPackages").toString());
+		this.executor.setExceptionHandler(framework.getExecutorExceptionHandler());
 		
-		this.exportedPackagesByName = new TreeMap(new Comparator() {
-			public int compare(Object o1, Object o2) {
-				String s = (String) o1;
-				String ws = (String) o2;
-
-				return TextUtil.wildcardCompare(ws, s);
-			}
-		});
+		this.exportedPackagesByName = new ConcurrentHashMap();
+		
+		this.exportedPackagesByBundle = new ConcurrentHashMap();
 		
 		this.requiredBundlesBySymbolicName = new HashMap();
 		
 		this.exportedPackagesLock = new Object();
 		
+		this.wiringGeneration = new AtomicLong();
+		
 		context.addBundleListener(new BundleListenerImpl());
 	}
 
@@ -199,7 +213,7 @@ class PackageAdminImpl implements PackageAdmin {
 	}
 		
 	public ExportedPackage getExportedPackage(String name) {
-		ExportedPackage[] exportedPackages = getExportedPackages(name);
+		ExportedPackage[] exportedPackages = getExportedPackages0(name);
 		if (exportedPackages != null) {
 			return exportedPackages[0];
 		}
@@ -208,37 +222,126 @@ class PackageAdminImpl implements PackageAdmin {
 	}
 
 	public ExportedPackage[] getExportedPackages(Bundle bundle) {
-		synchronized (exportedPackagesLock) {
-			ExportedPackage[] exportedPackages = new ExportedPackage[0];
-	
-			Iterator it = exportedPackagesByName.values().iterator();
+		if (bundle == null) {
+			/*
+			 * JavaDoc  bundle The bundle whose exported packages are to be returned,
+			 * or null if all exported packages are to be returned.
+			 */
+			List list = new ArrayList();
 			
+			Iterator it = exportedPackagesByBundle.values().iterator();
 			while (it.hasNext()) {
-				ExportedPackage[] exportedPackages0 = (ExportedPackage[]) it.next();
+				list.addAll(Arrays.asList((ExportedPackage[]) it.next()));
+			}
+			
+			return list.isEmpty() ? null : (ExportedPackage[]) list.toArray(new ExportedPackage[list.size()]);
+		}
+		
+		return copy(getExportedPackages0(bundle));
+	}
+
+	public ExportedPackage[] getExportedPackages(String name) {
+		return copy(getExportedPackages0(name));
+	}
 	
-				for (int j = 0; j < exportedPackages0.length; j++) {
-					ExportedPackage exportedPackage = exportedPackages0[j];
-					Bundle exportingBundle = exportedPackage.getExportingBundle();
+	/*
+	 * The arrays of the package index are returned by the framework without
+	 * copying them, callers must not modify them.
+	 */
+	ExportedPackage[] getExportedPackages0(Bundle bundle) {
+		return (ExportedPackage[]) exportedPackagesByBundle.get(bundle);
+	}
 	
-					if (exportingBundle.equals(bundle)) {						
-						exportedPackages = (ExportedPackage[]) ArrayUtil.add(exportedPackages, exportedPackage);
-					}
+	ExportedPackage[] getExportedPackages0(String name) {
+		return (ExportedPackage[]) exportedPackagesByName.get(name);
+	}
+	
+	private static ExportedPackage[] copy(ExportedPackage[] exportedPackages) {
+		return exportedPackages != null ? (ExportedPackage[]) exportedPackages.clone() : null;
+	}
+	
+	/*
+	 * Callers hold exportedPackagesLock.
+	 */
+	private void addExportedPackage(ExportedPackage exportedPackage) {
+		String name = exportedPackage.getName();
+		
+		ExportedPackage[] exportedPackages = (ExportedPackage[]) exportedPackagesByName.get(name);
+		if (exportedPackages != null) {
+			exportedPackages = (ExportedPackage[]) ArrayUtil.add(exportedPackages, exportedPackage);
+			
+			Arrays.sort(exportedPackages, new Comparator() {
+				public int compare(Object o1, Object o2) {
+					ExportedPackage ep1 = (ExportedPackage) o1;
+					ExportedPackage ep2 = (ExportedPackage) o2;
+
+					return -ep1.getVersion().compareTo(ep2.getVersion());
 				}
-			}
+			});
+		} else {
+			exportedPackages = new ExportedPackage[] {
+				exportedPackage
+			};
+		}
 	
-			return exportedPackages.length > 0 ? exportedPackages : null;
+		exportedPackagesByName.put(name, exportedPackages);
+		
+		Bundle exportingBundle = exportedPackage.getExportingBundle();
+		
+		exportedPackages = (ExportedPackage[]) exportedPackagesByBundle.get(exportingBundle);
+		if (exportedPackages != null) {
+			exportedPackages = (ExportedPackage[]) ArrayUtil.add(exportedPackages, exportedPackage);
+		} else {
+			exportedPackages = new ExportedPackage[] {
+				exportedPackage
+			};
 		}
+		
+		exportedPackagesByBundle.put(exportingBundle, exportedPackages);
 	}
-
-	public ExportedPackage[] getExportedPackages(String name) {
-		synchronized (exportedPackagesLock) {
-			return (ExportedPackage[]) exportedPackagesByName.get(name);
+	
+	/*
+	 * Callers hold exportedPackagesLock.
+	 */
+	private void removeExportedPackage(ExportedPackage exportedPackage) {
+		String name = exportedPackage.getName();
+		
+		ExportedPackage[] exportedPackages = (ExportedPackage[]) exportedPackagesByName.get(name);
+		if (exportedPackages != null) {
+			exportedPackages = (ExportedPackage[]) ArrayUtil.remove(exportedPackages, exportedPackage);
+			if (exportedPackages.length > 0) {
+				exportedPackagesByName.put(name, exportedPackages);
+			} else {
+				exportedPackagesByName.remove(name);
+			}
 		}
+		
+		Bundle exportingBundle = exportedPackage.getExportingBundle();
+		
+		exportedPackages = (ExportedPackage[]) exportedPackagesByBundle.get(exportingBundle);
+		if (exportedPackages != null) {
+			exportedPackages = (ExportedPackage[]) ArrayUtil.remove(exportedPackages, exportedPackage);
+			if (exportedPackages.length > 0) {
+				exportedPackagesByBundle.put(exportingBundle, exportedPackages);
+			} else {
+				exportedPackagesByBundle.remove(exportingBundle);
+			}
+		}
+	}
+	
+	/*
+	 * The clauses parsed when the bundle was installed; the headers of a bundle
+	 * uninstalled in the meantime are parsed again.
+	 */
+	private BundleMetadata getBundleMetadata(Bundle bundle) {
+		BundleMetadata metadata = framework.getBundleMetadata(bundle);
+		
+		return metadata != null ? metadata : new BundleMetadata(bundle.getHeaders());
 	}
 	
 	private void wireExportPackage(Bundle bundle) throws Exception {
-		String exportPackage = (String) bundle.getHeaders().get(Constants.EXPORT_PACKAGE);
-		if (exportPackage == null) {
+		ManifestEntry[] entries = getBundleMetadata(bundle).getExportPackages();
+		if (entries == null) {
 			return;
 		}
 		
@@ -255,10 +358,6 @@ class PackageAdminImpl implements PackageAdmin {
 			host = bundle;
 		}
 		
-		ManifestEntry[] entries = ManifestEntry.parse(exportPackage);
-		if (entries == null)
-			return;
-		
 		ClassLoader classLoader = ((HostBundle) bundle).getClassLoader();
 		
 		NEXT_ENTRY: for (int i = 0; i < entries.length; i++) {
@@ -269,7 +368,7 @@ class PackageAdminImpl implements PackageAdmin {
 				/*
 				 * Bundle is a Fragment. Check if the Package has been already exported.
 				 */
-				ExportedPackage[] exportedPackages = getExportedPackages(exportPkgName);
+				ExportedPackage[] exportedPackages = getExportedPackages0(exportPkgName);
 				if (exportedPackages != null) {
 					for (int j = 0 ; j < exportedPackages.length; j++) {
 						ExportedPackage exportedPackage = exportedPackages[j];
@@ -365,32 +464,14 @@ class PackageAdminImpl implements PackageAdmin {
 			 */
 			
 			synchronized (exportedPackagesLock) {
-				ExportedPackage[] exportedPackages = (ExportedPackage[]) exportedPackagesByName.get(exportPkgName);
-				if (exportedPackages != null) {
-					exportedPackages = (ExportedPackage[]) ArrayUtil.add(exportedPackages, exportedPackage);
-					
-					Arrays.sort(exportedPackages, new Comparator() {
-						public int compare(Object o1, Object o2) {
-							ExportedPackage ep1 = (ExportedPackage) o1;
-							ExportedPackage ep2 = (ExportedPackage) o2;
-	
-							return -ep1.getVersion().compareTo(ep2.getVersion());
-						}
-					});
-				} else {
-					exportedPackages = new ExportedPackage[] {
-						exportedPackage
-					};
-				}
-			
-				exportedPackagesByName.put(exportPkgName, exportedPackages);
+				addExportedPackage(exportedPackage);
 			}
 		}
 	}
 	
 	private void wireImportPackage(Bundle bundle) throws Exception {
-		String importPackage = (String) bundle.getHeaders().get(Constants.IMPORT_PACKAGE);
-		if (importPackage == null) {
+		ManifestEntry[] entries = getBundleMetadata(bundle).getImportPackages();
+		if (entries == null) {
 			return;
 		}
 		
@@ -401,7 +482,6 @@ class PackageAdminImpl implements PackageAdmin {
 			host = bundle;
 		}
 		
-		ManifestEntry[] entries = ManifestEntry.parse(importPackage);
 		NEXT_ENTRY: for (int i = 0; i < entries.length; i++) {
 			ManifestEntry importPackageEntry = entries[i];
 			String importPkgName = importPackageEntry.getName();
@@ -430,7 +510,7 @@ class PackageAdminImpl implements PackageAdmin {
 				mandatory = importPackageEntry.getAttributeValue(Constants.RESOLUTION_DIRECTIVE).equals(Constants.MANDATORY_DIRECTIVE);
 			}
 
-			ExportedPackage[] exportedPackages = getExportedPackages(importPkgName);
+			ExportedPackage[] exportedPackages = getExportedPackages0(importPkgName);
 			if (exportedPackages == null) {
 				if (mandatory) {
 					throw new Exception(new StringBuilder("Bundle(").
@@ -490,7 +570,7 @@ class PackageAdminImpl implements PackageAdmin {
 						throw new Exception(new StringBuilder("Bundle(").
 								append(bundle.getBundleId()).
 								append(") imports a Package(name=").
-								append(importPackage).
+								append(importPkgName).
 								append(") requiring a not available Bundle(symbolicName=").
 								append(symbolicName).
 								append(",version=").
@@ -557,7 +637,7 @@ class PackageAdminImpl implements PackageAdmin {
 					 */
 					String[] uses = ((ExportedPackageImpl) exportedPackage).getUses();
 					if (uses != null) {
-						ManifestEntry[] exportPackageEntries = ManifestEntry.parse(exportingBundle.getHeaders().get(Constants.EXPORT_PACKAGE));
+						ManifestEntry[] exportPackageEntries = getBundleMetadata(exportingBundle).getExportPackages();
 						for (int k = 0; k < exportPackageEntries.length; k++) {
 							ManifestEntry exportPackageEntry = exportPackageEntries[k];
 							for (int l = 0; l < uses.length; l++) {
@@ -596,6 +676,8 @@ class PackageAdminImpl implements PackageAdmin {
 					
 					((ExportedPackageImpl) exportedPackage).setImportingBundles0(importingBundles = importingBundles);
 					
+					getBundleClassLoader(host).addPackageWire(exportedPackage);
+					
 					continue NEXT_ENTRY;
 				}
 			}
@@ -607,8 +689,8 @@ class PackageAdminImpl implements PackageAdmin {
 	}
 	
 	private void wireRequireBundle(Bundle bundle) throws Exception {
-		String requireBundle = (String) bundle.getHeaders().get(Constants.REQUIRE_BUNDLE);
-		if (requireBundle == null) {
+		ManifestEntry[] entries = getBundleMetadata(bundle).getRequireBundles();
+		if (entries == null) {
 			return;
 		}
 
@@ -619,7 +701,6 @@ class PackageAdminImpl implements PackageAdmin {
 			host = bundle;
 		}
 		
-		ManifestEntry[] entries = ManifestEntry.parse(requireBundle);
 		NEXT_ENTRY: for (int i = 0; i < entries.length; i++) {
 			ManifestEntry entry = entries[i];
 			String symbolicName = entry.getName();
@@ -659,6 +740,8 @@ class PackageAdminImpl implements PackageAdmin {
 						
 						((RequiredBundleImpl) requiredBundle).setRequiringBundles0(requiringBundles);
 						
+						addRequiredBundle(host, requiredBundle.getBundle());
+						
 						continue NEXT_ENTRY;
 					}
 				}
@@ -700,6 +783,8 @@ class PackageAdminImpl implements PackageAdmin {
 
 				((RequiredBundleImpl) requiredBundle).setRequiringBundles0(requiringBundles);
 				
+				addRequiredBundle(host, bundle0);
+				
 				requiredBundles = (RequiredBundle[]) ArrayUtil.add(requiredBundles, requiredBundle);
 				
 				requiredBundlesBySymbolicName.put(symbolicName, requiredBundles);
@@ -707,22 +792,37 @@ class PackageAdminImpl implements PackageAdmin {
 		}
 	}
 	
+	private BundleClassLoader getBundleClassLoader(Bundle host) {
+		return (BundleClassLoader) ((HostBundle) host).getClassLoader();
+	}
+	
+	/*
+	 * 3.8.4  4. (...) the request is delegated to the class loaders of the other
+	 * bundles, in the order in which they are specified in this bundle's manifest.
+	 */
+	private void addRequiredBundle(Bundle host, Bundle bundle) {
+		if (getBundleType(bundle) == PackageAdmin.BUNDLE_TYPE_FRAGMENT) {
+			framework.log(LogService.LOG_WARNING, "Tried to use a fragment bundle as a required bundle.");
+			
+			return;
+		}
+		
+		getBundleClassLoader(host).addRequiredBundle(bundle);
+	}
+	
 	/*
 	 * Remove related ExportedPackage entries.
 	 */
 	private void unwireExportedPackages(Bundle bundle) {
 		try {
-			ExportedPackage[] exportedPackages = getExportedPackages(bundle);
+			ExportedPackage[] exportedPackages = getExportedPackages0(bundle);
 			
 			if (exportedPackages != null) {
 				for (int j = 0; j < exportedPackages.length; j++) {
 					ExportedPackage exportedPackage = exportedPackages[j];
 					
 					synchronized (exportedPackagesLock) {
-						ExportedPackage[] exportedPackages0 = (ExportedPackage[]) getExportedPackages(exportedPackage.getName());
-						exportedPackages0 = (ExportedPackage[]) ArrayUtil.remove(exportedPackages0, exportedPackage);
-					
-						exportedPackagesByName.put(exportedPackage.getName(), exportedPackages0);
+						removeExportedPackage(exportedPackage);
 					}
 				}
 			}
@@ -734,7 +834,10 @@ class PackageAdminImpl implements PackageAdmin {
 				for (int i = 0; i < entries.length; i++) {
 					String importPkgName = entries[i].getName();
 					
-					exportedPackages = (ExportedPackage[]) getExportedPackages(importPkgName);
+					exportedPackages = (ExportedPackage[]) getExportedPackages0(importPkgName);
+					if (exportedPackages == null) {
+						continue;
+					}
 	
 					for (int j = 0; j < exportedPackages.length; j++) {
 						ExportedPackage exportedPackage = exportedPackages[j];
@@ -963,6 +1066,8 @@ class PackageAdminImpl implements PackageAdmin {
 			     * state is now the Bundle RESOLVED state.
 				 */
 				
+				wiringGeneration.incrementAndGet();
+				
 				BundleEvent bundleEvent = new BundleEvent(BundleEvent.RESOLVED, bundle);
 				framework.postBundleEvent(bundleEvent);
 			}
@@ -978,15 +1083,16 @@ class PackageAdminImpl implements PackageAdmin {
 	private void checkAttachConditions(Bundle bundle) throws Exception {
 		Bundle host = framework.getHosts0(bundle)[0];
 
-		String importPackage = (String) bundle.getHeaders().get(Constants.IMPORT_PACKAGE);
+		BundleMetadata metadata = getBundleMetadata(bundle);
+
+		ManifestEntry[] importPackageEntries = metadata.getImportPackages();
 
-		if (importPackage != null) {
-			ManifestEntry[] importPackageEntries = ManifestEntry.parse(importPackage);
+		if (importPackageEntries != null) {
 			for (int i = 0; i < importPackageEntries.length; i++) {
 				ManifestEntry importPackageEntry = importPackageEntries[i];
 				String importPkgName = importPackageEntry.getName();
 	
-				ExportedPackage[] exportedPackages = getExportedPackages(importPkgName);
+				ExportedPackage[] exportedPackages = getExportedPackages0(importPkgName);
 				if (exportedPackages != null) {
 					for (int j = 0 ; j < exportedPackages.length; j++) {
 						ExportedPackage exportedPackage = exportedPackages[j];
@@ -1022,10 +1128,9 @@ class PackageAdminImpl implements PackageAdmin {
 			}
 		}
 
-		String requireBundle = (String) bundle.getHeaders().get(Constants.REQUIRE_BUNDLE);
+		ManifestEntry[] requireBundleEntries = metadata.getRequireBundles();
 
-		if (requireBundle != null) {
-			ManifestEntry[] requireBundleEntries = ManifestEntry.parse(requireBundle);
+		if (requireBundleEntries != null) {
 			for (int i = 0; i < requireBundleEntries.length; i++) {
 				ManifestEntry entry = requireBundleEntries[i];
 				String symbolicName = entry.getName();
@@ -1059,14 +1164,12 @@ class PackageAdminImpl implements PackageAdmin {
 			}
 		}
 		
-		String exportPackage = (String) bundle.getHeaders().get(Constants.EXPORT_PACKAGE);
+		ManifestEntry[] entries = metadata.getExportPackages();
 		
-		if (exportPackage != null) {
-			ManifestEntry[] entries = ManifestEntry.parse(exportPackage);
-			if (entries == null)
-				return;
+		if (entries != null) {
+			String exportPackage = (String) bundle.getHeaders().get(Constants.EXPORT_PACKAGE);
 			
-			ExportedPackage[] exportedPackages = getExportedPackages(host);
+			ExportedPackage[] exportedPackages = getExportedPackages0(host);
 	
 			if (exportedPackages != null) {
 				for (int i = 0; i < entries.length; i++) {
@@ -1157,7 +1260,7 @@ class PackageAdminImpl implements PackageAdmin {
 				}
 			}
 			
-			ExportedPackage[] exportedPackages = getExportedPackages(bundle);
+			ExportedPackage[] exportedPackages = getExportedPackages0(bundle);
 			
 			if (exportedPackages != null) {
 				for (int k = 0; k < exportedPackages.length; k++) {
@@ -1303,6 +1406,18 @@ class PackageAdminImpl implements PackageAdmin {
 						framework.remove((Bundle) it.next());
 					}
 					
+					/*
+					 * the class loaders reading the revisions replaced by an
+					 * update have been dropped in step 3
+					 */
+					it = graph.iterator();
+					while (it.hasNext()) {
+						Bundle bundle1 = (Bundle) it.next();
+						if (!uninstalledBundles.contains(bundle1)) {
+							framework.closeStaleClassPaths(bundle1);
+						}
+					}
+					
 					/* 
 					 * JavaDoc  5 Each bundle in the graph that was in the ACTIVE state
 					 * prior to Step 2 is started as described in the Bundle.start
@@ -1339,5 +1454,362 @@ class PackageAdminImpl implements PackageAdmin {
 		unwireExportedPackages(bundle);
 		
 		unwireRequiredBundles(bundle);
+		
+		if (bundle instanceof HostBundle) {
+			BundleClassLoader classLoader = ((HostBundle) bundle).classLoader;
+			if (classLoader != null) {
+				classLoader.clearWires();
+			}
+		}
+		
+		wiringGeneration.incrementAndGet();
+	}
+	
+	long getWiringGeneration() {
+		return wiringGeneration.get();
+	}
+	
+	/*
+	 * The wiring of the resolved bundles, null if it cannot be restored as it
+	 * is, i.e. packages or bundles pending removal are still wired.
+	 */
+	synchronized WiringSnapshot getWiringSnapshot() {
+		Bundle[] bundles = framework.getBundles();
+		
+		List resolvedBundles = new ArrayList();
+		
+		for (int i = 0; i < bundles.length; i++) {
+			if (bundles[i].getBundleId() != 0L && (bundles[i].getState() & (Bundle.INSTALLED | Bundle.UNINSTALLED)) == 0) {
+				resolvedBundles.add(bundles[i]);
+			}
+		}
+		
+		WiringSnapshot snapshot = new WiringSnapshot();
+		
+		snapshot.fingerprint = WiringSnapshot.fingerprint(framework, bundles);
+		
+		snapshot.resolvedIds = toIds((Bundle[]) resolvedBundles.toArray(new Bundle[resolvedBundles.size()]));
+		
+		/*
+		 * the packages are recorded in the order they are found by name, so that
+		 * exporters of the same version keep their precedence
+		 */
+		List exports = new ArrayList();
+		
+		Map indexesByExport = new HashMap();
+		
+		Iterator it = exportedPackagesByName.values().iterator();
+		while (it.hasNext()) {
+			ExportedPackage[] exportedPackages = (ExportedPackage[]) it.next();
+			for (int i = 0; i < exportedPackages.length; i++) {
+				ExportedPackageImpl exportedPackage = (ExportedPackageImpl) exportedPackages[i];
+				
+				Bundle exportingBundle = exportedPackage.getExportingBundle();
+				if (exportingBundle == null || exportedPackage.isRemovalPending()) {
+					return null;
+				}
+				
+				WiringSnapshot.Export export = new WiringSnapshot.Export();
+				export.exporterId = exportingBundle.getBundleId();
+				export.name = exportedPackage.getName();
+				export.specificationVersion = exportedPackage.getSpecificationVersion();
+				export.version = exportedPackage.getVersion().toString();
+				export.company = exportedPackage.getCompany();
+				export.uses = exportedPackage.getUses();
+				export.mandatory = exportedPackage.getMandatory();
+				export.include = exportedPackage.getInclude();
+				export.exclude = exportedPackage.getExclude();
+				export.importerIds = toIds(exportedPackage.getImportingBundles());
+				
+				indexesByExport.put(exportedPackage, Integer.valueOf(exports.size()));
+				
+				exports.add(export);
+			}
+		}
+		
+		snapshot.exports = (WiringSnapshot.Export[]) exports.toArray(new WiringSnapshot.Export[exports.size()]);
+		
+		List wires = new ArrayList();
+		
+		for (int i = 0; i < resolvedBundles.size(); i++) {
+			Bundle bundle = (Bundle) resolvedBundles.get(i);
+			if (!(bundle instanceof HostBundle)) {
+				continue;
+			}
+			
+			BundleClassLoader classLoader = ((HostBundle) bundle).classLoader;
+			if (classLoader == null) {
+				continue;
+			}
+			
+			ExportedPackage[] packageWires = classLoader.getPackageWires();
+			
+			Bundle[] requiredBundles = classLoader.getRequiredBundles();
+			
+			if (packageWires.length == 0 && requiredBundles.length == 0) {
+				continue;
+			}
+			
+			WiringSnapshot.Wires wires0 = new WiringSnapshot.Wires();
+			wires0.hostId = bundle.getBundleId();
+			
+			wires0.exports = new int[packageWires.length];
+			for (int j = 0; j < packageWires.length; j++) {
+				Integer index = (Integer) indexesByExport.get(packageWires[j]);
+				if (index == null) {
+					return null;
+				}
+				
+				wires0.exports[j] = index.intValue();
+			}
+			
+			wires0.requiredBundleIds = toIds(requiredBundles);
+			
+			wires.add(wires0);
+		}
+		
+		snapshot.wires = (WiringSnapshot.Wires[]) wires.toArray(new WiringSnapshot.Wires[wires.size()]);
+		
+		List requirements = new ArrayList();
+		
+		it = requiredBundlesBySymbolicName.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry entry = (Map.Entry) it.next();
+			
+			RequiredBundle[] requiredBundles = (RequiredBundle[]) entry.getValue();
+			for (int i = 0; i < requiredBundles.length; i++) {
+				if (requiredBundles[i].isRemovalPending()) {
+					return null;
+				}
+				
+				WiringSnapshot.Requirement requirement = new WiringSnapshot.Requirement();
+				requirement.symbolicName = (String) entry.getKey();
+				requirement.bundleId = requiredBundles[i].getBundle().getBundleId();
+				requirement.requiringIds = toIds(requiredBundles[i].getRequiringBundles());
+				
+				requirements.add(requirement);
+			}
+		}
+		
+		snapshot.requirements = (WiringSnapshot.Requirement[]) requirements.toArray(new WiringSnapshot.Requirement[requirements.size()]);
+		
+		return snapshot;
+	}
+	
+	/*
+	 * Wires the bundles as recorded by the snapshot instead of resolving them:
+	 * the manifest headers are not parsed and no constraint is checked again.
+	 * Must be invoked once the system bundle has been resolved, before any
+	 * other bundle is. Nothing is changed if the snapshot refers to a bundle or
+	 * to a package of the system bundle that no longer exists.
+	 */
+	synchronized boolean restoreWiring(WiringSnapshot snapshot) {
+		Bundle[] resolvedBundles = toBundles(snapshot.resolvedIds);
+		if (resolvedBundles == null) {
+			return false;
+		}
+		
+		for (int i = 0; i < resolvedBundles.length; i++) {
+			if (resolvedBundles[i].getState() != Bundle.INSTALLED) {
+				return false;
+			}
+		}
+		
+		ExportedPackage[] exportedPackages = new ExportedPackage[snapshot.exports.length];
+		
+		Bundle[][] importingBundles = new Bundle[snapshot.exports.length][];
+		
+		for (int i = 0; i < snapshot.exports.length; i++) {
+			WiringSnapshot.Export export = snapshot.exports[i];
+			
+			importingBundles[i] = toBundles(export.importerIds);
+			if (importingBundles[i] == null) {
+				return false;
+			}
+			
+			if (export.exporterId == 0L) {
+				/*
+				 * exported when the system bundle has been resolved
+				 */
+				exportedPackages[i] = getSystemExportedPackage(export.name, export.version);
+				if (exportedPackages[i] == null) {
+					return false;
+				}
+			} else {
+				Bundle exportingBundle = framework.getBundle(export.exporterId);
+				if (!(exportingBundle instanceof HostBundle) || !ArrayUtil.contains(resolvedBundles, exportingBundle)) {
+					return false;
+				}
+			}
+		}
+		
+		Bundle[] hosts = new Bundle[snapshot.wires.length];
+		
+		Bundle[][] requiredBundles = new Bundle[snapshot.wires.length][];
+		
+		for (int i = 0; i < snapshot.wires.length; i++) {
+			hosts[i] = framework.getBundle(snapshot.wires[i].hostId);
+			if (!(hosts[i] instanceof HostBundle) || !ArrayUtil.contains(resolvedBundles, hosts[i])) {
+				return false;
+			}
+			
+			requiredBundles[i] = toBundles(snapshot.wires[i].requiredBundleIds);
+			if (requiredBundles[i] == null) {
+				return false;
+			}
+			
+			int[] exports = snapshot.wires[i].exports;
+			for (int j = 0; j < exports.length; j++) {
+				if (exports[j] < 0 || exports[j] >= exportedPackages.length) {
+					return false;
+				}
+			}
+		}
+		
+		Bundle[] bundles = new Bundle[snapshot.requirements.length];
+		
+		Bundle[][] requiringBundles = new Bundle[snapshot.requirements.length][];
+		
+		for (int i = 0; i < snapshot.requirements.length; i++) {
+			bundles[i] = framework.getBundle(snapshot.requirements[i].bundleId);
+			if (bundles[i] == null) {
+				return false;
+			}
+			
+			requiringBundles[i] = toBundles(snapshot.requirements[i].requiringIds);
+			if (requiringBundles[i] == null) {
+				return false;
+			}
+		}
+		
+		/*
+		 * the class loaders are created before anything is wired, if one
+		 * cannot be created the ones already created are dropped and nothing
+		 * has been wired yet
+		 */
+		BundleClassLoader[] classLoaders = new BundleClassLoader[hosts.length];
+		
+		try {
+			for (int i = 0; i < snapshot.exports.length; i++) {
+				WiringSnapshot.Export export = snapshot.exports[i];
+				if (export.exporterId == 0L) {
+					continue;
+				}
+				
+				HostBundle exportingBundle = (HostBundle) framework.getBundle(export.exporterId);
+				
+				exportedPackages[i] = new ExportedPackageImpl(exportingBundle, export.name, export.specificationVersion, Version.parseVersion(export.version), export.company, export.uses, export.mandatory, export.include, export.exclude, exportingBundle.getClassLoader());
+			}
+			
+			for (int i = 0; i < hosts.length; i++) {
+				classLoaders[i] = getBundleClassLoader(hosts[i]);
+			}
+		} catch (RuntimeException e) {
+			for (int i = 0; i < resolvedBundles.length; i++) {
+				if (resolvedBundles[i] instanceof HostBundle) {
+					((HostBundle) resolvedBundles[i]).setBundleClassLoader(null);
+				}
+			}
+			
+			throw e;
+		}
+		
+		synchronized (exportedPackagesLock) {
+			for (int i = 0; i < exportedPackages.length; i++) {
+				if (snapshot.exports[i].exporterId != 0L) {
+					addExportedPackage(exportedPackages[i]);
+				}
+			}
+		}
+		
+		for (int i = 0; i < exportedPackages.length; i++) {
+			((ExportedPackageImpl) exportedPackages[i]).setImportingBundles0(importingBundles[i].length > 0 ? importingBundles[i] : null);
+		}
+		
+		for (int i = 0; i < hosts.length; i++) {
+			int[] exports = snapshot.wires[i].exports;
+			for (int j = 0; j < exports.length; j++) {
+				classLoaders[i].addPackageWire(exportedPackages[exports[j]]);
+			}
+			
+			for (int j = 0; j < requiredBundles[i].length; j++) {
+				classLoaders[i].addRequiredBundle(requiredBundles[i][j]);
+			}
+		}
+		
+		for (int i = 0; i < bundles.length; i++) {
+			RequiredBundleImpl requiredBundle = new RequiredBundleImpl(bundles[i]);
+			requiredBundle.setRequiringBundles0(requiringBundles[i]);
+			
+			String symbolicName = snapshot.requirements[i].symbolicName;
+			
+			RequiredBundle[] requiredBundles0 = (RequiredBundle[]) requiredBundlesBySymbolicName.get(symbolicName);
+			if (requiredBundles0 != null) {
+				requiredBundles0 = (RequiredBundle[]) ArrayUtil.add(requiredBundles0, requiredBundle);
+			} else {
+				requiredBundles0 = new RequiredBundle[] {
+					requiredBundle
+				};
+			}
+			
+			requiredBundlesBySymbolicName.put(symbolicName, requiredBundles0);
+		}
+		
+		for (int i = 0; i < resolvedBundles.length; i++) {
+			((AbstractBundle) resolvedBundles[i]).setState(Bundle.RESOLVED);
+		}
+		
+		wiringGeneration.incrementAndGet();
+		
+		/*
+		 * 4.6.1  RESOLVED  Sent when the Framework has resolved a bundle.
+		 */
+		for (int i = 0; i < resolvedBundles.length; i++) {
+			BundleEvent bundleEvent = new BundleEvent(BundleEvent.RESOLVED, resolvedBundles[i]);
+			framework.postBundleEvent(bundleEvent);
+		}
+		
+		return true;
+	}
+	
+	private ExportedPackage getSystemExportedPackage(String name, String version) {
+		ExportedPackage[] exportedPackages = (ExportedPackage[]) exportedPackagesByBundle.get(framework);
+		if (exportedPackages != null) {
+			for (int i = 0; i < exportedPackages.length; i++) {
+				if (exportedPackages[i].getName().equals(name) && exportedPackages[i].getVersion().toString().equals(version)) {
+					return exportedPackages[i];
+				}
+			}
+		}
+		
+		return null;
+	}
+	
+	private static long[] toIds(Bundle[] bundles) {
+		if (bundles == null) {
+			return new long[0];
+		}
+		
+		long[] ids = new long[bundles.length];
+		for (int i = 0; i < bundles.length; i++) {
+			ids[i] = bundles[i].getBundleId();
+		}
+		
+		return ids;
+	}
+	
+	/*
+	 * null if a bundle is no longer installed
+	 */
+	private Bundle[] toBundles(long[] ids) {
+		Bundle[] bundles = new Bundle[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			bundles[i] = framework.getBundle(ids[i]);
+			if (bundles[i] == null) {
+				return null;
+			}
+		}
+		
+		return bundles;
 	}
 }
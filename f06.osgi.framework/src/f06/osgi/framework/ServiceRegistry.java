@@ -28,7 +28,6 @@ import java.util.Map;
 import java.util.WeakHashMap;
 
 import org.osgi.framework.Bundle;
-import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleListener;
 import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
@@ -39,9 +38,7 @@ import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.framework.SynchronousBundleListener;
 import org.osgi.service.event.Event;
-import org.osgi.service.event.EventConstants;
 import org.osgi.service.event.EventHandler;
-import org.osgi.service.log.LogService;
 import org.osgi.service.packageadmin.PackageAdmin;
 
 import f06.util.ArrayUtil;
@@ -84,9 +81,9 @@ class ServiceRegistry {
 			}
 
 			/*
-			 * references are already ordered by id / ranking
+			 * otherwise ordered by id / ranking
 			 */
-			return 0;
+			return ((Comparable) o1).compareTo(o2);
 		}
 	};
 	
@@ -110,6 +107,8 @@ class ServiceRegistry {
 	
 	private List listenerHooks;
 	
+	private EventHandlerIndex eventHandlerIndex;
+	
 	ServiceRegistry(Framework framework) {
 		this.framework = framework;
 		
@@ -134,6 +133,8 @@ class ServiceRegistry {
 		findHooks = new ArrayList();
 		
 		listenerHooks = new ArrayList();
+		
+		eventHandlerIndex = new EventHandlerIndex(framework);
 	}
 	
 	ServiceReference[] getAllServiceReferences(String clazz, String filter) throws InvalidSyntaxException {
@@ -295,6 +296,10 @@ class ServiceRegistry {
 			referencesByRegistration.put(registration, reference);
 		}
 		
+		if (isEventHandler(clazzez)) {
+			eventHandlerIndex.add(reference);
+		}
+		
 		ServiceEvent serviceEvent = new ServiceEvent(ServiceEvent.REGISTERED, registration.getReference());
 		framework.postServiceEvent(serviceEvent);
 		
@@ -328,6 +333,10 @@ class ServiceRegistry {
 		     */
 			referencesByRegistration.remove(registration);
 			
+			if (isEventHandler(clazzez)) {
+				eventHandlerIndex.remove(reference);
+			}
+			
 			/*
 			 * 113.6.5
 			 * 
@@ -434,6 +443,24 @@ class ServiceRegistry {
 				properties0.put(key, properties.get(key));
 			}
 		}
+		
+		ServiceReference reference = registration.getReference();
+		if (isEventHandler((String[]) reference.getProperty(Constants.OBJECTCLASS))) {
+			/*
+			 * topics and filter could have been changed
+			 */
+			eventHandlerIndex.modified(reference);
+		}
+	}
+	
+	private static boolean isEventHandler(String[] clazzez) {
+		for (int i = 0; i < clazzez.length; i++) {
+			if (clazzez[i].equals(EventHandler.class.getName())) {
+				return true;
+			}
+		}
+		
+		return false;
 	}
 	
 	/*
@@ -488,83 +515,85 @@ class ServiceRegistry {
 
 	ServiceReference[] getServiceReferences(Event event) {
 		Collection references = new ArrayList();
-		try {
-			String eventTopic = event.getTopic();
+
+		/*
+		 * 4.6.2  If the Framework delivers an event asynchronously, it must:
+		 *   
+		 *   Collect a snapshot of the listener list at the time the event is published
+		 *   (rather than doing so in the future just prior to event delivery), but
+		 *   before the event is delivered, so that listeners do not enter the list after
+		 *   the event happened.
+		 */
+		EventHandlerIndex.Entry[] entries = eventHandlerIndex.getEntries(event.getTopic());
+		
+		if (entries.length > 0) {
+			ServiceReference[] references0 = new ServiceReference[entries.length];
 			
-			BundleContext context = framework.getBundleContext(); 
-			/*
-			 * 4.6.2  If the Framework delivers an event asynchronously, it must:
-			 *   
-			 *   Collect a snapshot of the listener list at the time the event is published
-			 *   (rather than doing so in the future just prior to event delivery), but
-			 *   before the event is delivered, so that listeners do not enter the list after
-			 *   the event happened.
-			 */
-			String filter = new StringBuilder("(").append(EventConstants.EVENT_TOPIC).append("=").append(eventTopic).append(")").toString();
-			ServiceReference[] references0 = context.getAllServiceReferences(EventHandler.class.getName(), filter);
+			Map entriesByReference = new HashMap();
+			for (int i = 0; i < entries.length; i++) {
+				references0[i] = entries[i].reference;
+				
+				entriesByReference.put(entries[i].reference, entries[i]);
+			}
 			
-			if (references0 != null) {
-				Arrays.sort(references0, referencesComparator);
+			Arrays.sort(references0, referencesComparator);
 
-				NEXT_REFERENCE:	for (int i = 0; i < references0.length; i++) {
-					ServiceReference reference = references0[i];
+			NEXT_REFERENCE:	for (int i = 0; i < references0.length; i++) {
+				ServiceReference reference = references0[i];
+				/*
+				 *   4.6.2  Ensure, at the time the snapshot is taken, that listeners on the list still belong
+				 *   to active bundles at the time the event is delivered.
+				 *   
+				 *   4.3.2  The following code sample can be used to determine if a bundle is in the STARTING,
+				 *   ACTIVE, or STOPPING state:
+				 *   
+				 *   
+				 *   STARTING  BundleActivator#start(BundleContext)
+				 *   
+				 *   STOPPING  BundleActivator#stop(BundleContext)
+				 *   
+				 *   ACTIVE
+				 */
+				Bundle bundle = reference.getBundle();
+				if (bundle != null && (bundle.getState() & (Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING)) != 0) {
+					Filter eventFilter = ((EventHandlerIndex.Entry) entriesByReference.get(reference)).filter;
+					if (eventFilter != null) {
+						if (!event.matches(eventFilter)) {
+							continue;
+						}
+					}
+					
 					/*
-					 *   4.6.2  Ensure, at the time the snapshot is taken, that listeners on the list still belong
-					 *   to active bundles at the time the event is delivered.
-					 *   
-					 *   4.3.2  The following code sample can be used to determine if a bundle is in the STARTING,
-					 *   ACTIVE, or STOPPING state:
-					 *   
-					 *   
-					 *   STARTING  BundleActivator#start(BundleContext)
-					 *   
-					 *   STOPPING  BundleActivator#stop(BundleContext)
-					 *   
-					 *   ACTIVE
+					 * 5.9.2  Some bundles need to listen to all service events regardless the compatibility
+					 * issues. A new type of ServiceListener is therefore added: AllServiceListener.
+					 * This is a marker interface; it extends ServiceListener. Listeners that
+					 * use this marker interface indicate to the Framework that they want to see all
+					 * services, including services that are incompatible with them.
 					 */
-					Bundle bundle = reference.getBundle();
-					if ((bundle.getState() & (Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING)) != 0) {
-						String eventFilter = (String) reference.getProperty(EventConstants.EVENT_FILTER);
-						if (eventFilter != null) {
-							if (!event.matches(context.createFilter(eventFilter))) {
-								continue;
-							}
-						}
+					String listenerClassName = (String) reference.getProperty(Constants0.LISTENERCLASS);
+					if (
+							listenerClassName != null && 
+							listenerClassName.equals(ServiceListener.class.getName())
+						) {
+						ServiceEvent serviceEvent = (ServiceEvent) event.getProperty("event");
 						
-						/*
-						 * 5.9.2  Some bundles need to listen to all service events regardless the compatibility
-						 * issues. A new type of ServiceListener is therefore added: AllServiceListener.
-						 * This is a marker interface; it extends ServiceListener. Listeners that
-						 * use this marker interface indicate to the Framework that they want to see all
-						 * services, including services that are incompatible with them.
-						 */
-						String listenerClassName = (String) reference.getProperty(Constants0.LISTENERCLASS);
-						if (
-								listenerClassName != null && 
-								listenerClassName.equals(ServiceListener.class.getName())
-							) {
-							ServiceEvent serviceEvent = (ServiceEvent) event.getProperty("event");
+						String[] clazzez = (String[]) event.getProperty(Constants.OBJECTCLASS);
+						for (int j = 0; j < clazzez.length; j++) {
+							/*
+							 * reference refers to the listener, serviceEvent.getServiceReference() to the
+							 * registering bundle
+							 */
+							ServiceReference serviceEventReference = serviceEvent.getServiceReference();
 							
-							String[] clazzez = (String[]) event.getProperty(Constants.OBJECTCLASS);
-							for (int j = 0; j < clazzez.length; j++) {
-								/*
-								 * reference refers to the listener, serviceEvent.getServiceReference() to the
-								 * registering bundle
-								 */
-								ServiceReference serviceEventReference = serviceEvent.getServiceReference();
-								
-								if (!serviceEventReference.isAssignableTo(reference.getBundle(), clazzez[j])) {
-									continue NEXT_REFERENCE;
-								}
+							if (!serviceEventReference.isAssignableTo(reference.getBundle(), clazzez[j])) {
+								continue NEXT_REFERENCE;
 							}
 						}
-						
-						references.add(reference);
 					}
+					
+					references.add(reference);
 				}
 			}
-		} catch (InvalidSyntaxException e) {
-			framework.log(LogService.LOG_ERROR, e.getMessage(), e);
 		}
 		
 		return references.isEmpty() ? null : (ServiceReference[]) references.toArray(new ServiceReference[0]);
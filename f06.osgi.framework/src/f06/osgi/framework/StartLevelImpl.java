@@ -46,6 +46,7 @@ public class StartLevelImpl implements StartLevel {
 		initialBundleStartLevel = str != null ? Integer.parseInt(str) : 1;
 		
 		executor = new SerialExecutorService(getClass().getName());
+		executor.setExceptionHandler(framework.getExecutorExceptionHandler());
 	}
 	
 	public boolean isBundleActivationPolicyUsed(Bundle bundle) {
@@ -15,8 +15,11 @@
  */
 package f06.osgi.framework;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -25,7 +28,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.URL;
@@ -34,10 +36,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Dictionary;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.jar.Manifest;
 
 import org.osgi.framework.AdminPermission;
@@ -52,9 +60,11 @@ import org.osgi.service.permissionadmin.PermissionInfo;
 
 import f06.util.ArrayUtil;
 import f06.util.CaseSensitiveDictionary;
+import f06.util.Future;
 import f06.util.IOUtil;
 import f06.util.ManifestEntry;
 import f06.util.ManifestUtil;
+import f06.util.SerialExecutorService;
 
 /*
  * 4.4.2 Persistent Storage
@@ -65,10 +75,30 @@ class Storage {
 	private final static String BUNDLES_FOLDER = "bundles";
 	private final static String BUNDLE_CACHE_FOLDER = "cache";
 	private final static String BUNDLE_DATA_FOLDER = "data";
+	/*
+	 * replaced by the journal, read once to migrate older storages
+	 */
 	private final static String BUNDLE_INFO_FILE = "bundleinfo";
+	private final static String JOURNAL_FILE = "journal";
 	private final static String BUNDLE_PERMISSIONS_FILE = "bundlepolicy";
 	private final static String BUNDLE_MANIFEST_FILE = "bundlemanifest";
+	private final static String BUNDLE_BLOBS_FILE = "bundleblobs";
+	/*
+	 * location of the revision, read only to record it again in the journal
+	 */
+	private final static String BUNDLE_LOCATION_FILE = "bundlelocation";
+	private final static String BLOBS_FOLDER = "blobs";
 	final static String BUNDLE_FILE = "bundlefile";
+	private final static String PRELOAD_PROFILE_FILE = "preloadprofile";
+	private final static String WIRING_FILE = "wiring";
+
+	private final static int PRELOAD_PROFILE_MAGIC = 0xF06C1A55;
+
+	private final static int BUNDLE_MANIFEST_MAGIC = 0xF06C0A4D;
+
+	private final static int DEFAULT_JARFILE_POOL_CAPACITY = 256;
+
+	private final static long DEFAULT_JOURNAL_FLUSH_DELAY = 1000L;
 
 	static class BundleInfo implements Serializable {
 
@@ -91,6 +121,8 @@ class Storage {
 
 		private transient Dictionary headers;
 
+		private transient BundleMetadata metadata;
+
 		private transient File cache;
 
 		BundleInfo(long bundleId, String location, long lastModified, int startLevel) {
@@ -139,10 +171,19 @@ class Storage {
 			return headers;
 		}
 
+		/*
+		 * the headers are parsed once for all
+		 */
 		public void setHeaders(Dictionary headers) {
+			this.metadata = new BundleMetadata(headers);
+
 			this.headers = headers;
 		}
 
+		BundleMetadata getMetadata() {
+			return metadata;
+		}
+
 		public void setRemovalPending(boolean removalPending) {
 			this.removalPending = removalPending;
 		}
@@ -160,7 +201,20 @@ class Storage {
 		}
 	}
 
-	private Bundle[] bundles;
+	/*
+	 * sorted by bundle id. The array is replaced, never modified, so it is
+	 * read without locking; bundlesLock serializes the writers.
+	 */
+	private volatile Bundle[] bundles;
+
+	/*
+	 * bundle id -> Bundle
+	 * 
+	 * location -> Bundle, the first installed from the location
+	 */
+	private Map bundlesById;
+
+	private ConcurrentMap bundlesByLocation;
 
 	private File storagePath;
 
@@ -182,7 +236,21 @@ class Storage {
 	
 	private Object permissionsLock;
 	
+    /*
+     * Bundle -> BundleURLClassPath[], one per revision not yet refreshed away;
+     * read without locking
+     */
     private Map classPathsByBundle;
+    
+    /*
+     * jar files of all the bundle class paths, stale revisions included until
+     * they are refreshed
+     */
+    private JarFilePool jarFilePool;
+    
+    private StorageJournal journal;
+    
+    private BlobStore blobStore;
 	
 	
 	private static volatile boolean firstInit = true;
@@ -219,6 +287,10 @@ class Storage {
 		firstInit = false;
 
 		this.bundlesLock = new Object();
+		
+		this.bundlesById = new ConcurrentHashMap();
+		
+		this.bundlesByLocation = new ConcurrentHashMap();
 
 		this.bundleInfosLock = new Object();
 		
@@ -226,7 +298,50 @@ class Storage {
 		
 		this.permissionsLock = new Object();
 		
-		this.classPathsByBundle = new HashMap();
+		this.classPathsByBundle = new ConcurrentHashMap();
+		
+		int jarFilePoolCapacity = DEFAULT_JARFILE_POOL_CAPACITY;
+		
+		String str = framework.getProperty(Constants0.JARFILE_POOL_CAPACITY);
+		if (str != null) {
+			jarFilePoolCapacity = Integer.parseInt(str.trim());
+		}
+		
+		this.jarFilePool = new JarFilePool(framework, jarFilePoolCapacity);
+		
+		boolean journalSync = Boolean.valueOf(framework.getProperty(Constants0.STORAGE_JOURNAL_SYNC)).booleanValue();
+		
+		long journalFlushDelay = DEFAULT_JOURNAL_FLUSH_DELAY;
+		
+		str = framework.getProperty(Constants0.STORAGE_JOURNAL_FLUSH_DELAY);
+		if (str != null) {
+			journalFlushDelay = Long.parseLong(str.trim());
+		}
+		
+		this.journal = new StorageJournal(framework, new File(storagePath, JOURNAL_FILE), journalSync, journalFlushDelay);
+		
+		this.blobStore = new BlobStore(new File(storagePath, BLOBS_FOLDER));
+	}
+	
+	void close() {
+		journal.close();
+		
+		Iterator it = classPathsByBundle.values().iterator();
+		while (it.hasNext()) {
+			close((BundleURLClassPath[]) it.next());
+		}
+		
+		jarFilePool.closeAll();
+	}
+	
+	private void close(BundleURLClassPath[] classPaths) {
+		for (int i = 0; i < classPaths.length; i++) {
+			classPaths[i].close();
+		}
+	}
+	
+	JarFilePool getJarFilePool() {
+		return jarFilePool;
 	}
 	
 	private void cleanStorage() {
@@ -241,25 +356,169 @@ class Storage {
 		synchronized (bundlesLock) {
 			fetchSystemBundle();
 			
-			File[] files = getBundlesFolder().listFiles();
-
-			if (files != null) {
-				for (int i = 0; i < files.length; i++) {
-					if (files[i].isDirectory()) {
-						Bundle bundle = fetchBundle(files[i]);
-						if (bundle != null) {
-							bundles = (Bundle[]) ArrayUtil.add(this.bundles, bundle);
-						}
-					}
+			journal.open();
+		}
+		
+		File[] files = getBundlesFolder().listFiles();
+		
+		File[] folders = new File[0];
+		
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				if (files[i].isDirectory()) {
+					folders = (File[]) ArrayUtil.add(folders, files[i]);
+				}
+			}
+		}
+		
+		/*
+		 * the folders are named after the bundle ids
+		 */
+		Arrays.sort(folders, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				String name1 = ((File) o1).getName();
+				String name2 = ((File) o2).getName();
+				
+				if (name1.length() != name2.length()) {
+					return name1.length() - name2.length();
+				}
+				
+				return name1.compareTo(name2);
+			}
+		});
+		
+		/*
+		 * The bundles are read by a pool of threads: fetchBundle reads the
+		 * manifest and opens the class path of a bundle, which does not depend
+		 * on the other bundles. The bundles lock is not held meanwhile, the
+		 * fetched bundles already answer getBundleId and getHeaders.
+		 */
+		AbstractBundle[] fetched = fetchBundles(folders);
+		
+		synchronized (bundlesLock) {
+			/*
+			 * bundle id order, as the bundles have been installed
+			 */
+			for (int i = 0; i < fetched.length; i++) {
+				AbstractBundle bundle = fetched[i];
+				if (bundle == null) {
+					continue;
+				}
+				
+				addBundle(bundle, getBundleInfo(bundle));
+				
+				if (bundle instanceof HostBundle) {
+					int startlevel = getBundleInfo(bundle).getStartLevel();
+					framework.setBundleStartLevel(bundle, startlevel);
 				}
+			}
 
-				Arrays.sort(bundles, new Comparator() {
-					public int compare(Object o1, Object o2) {
-						return ((Bundle) o1).getBundleId() > ((Bundle) o1).getBundleId() ? 1 : -1;
+			Bundle[] bundles = (Bundle[]) ArrayUtil.copyOf(this.bundles, this.bundles.length);
+			
+			Arrays.sort(bundles, new Comparator() {
+				public int compare(Object o1, Object o2) {
+					long id1 = ((Bundle) o1).getBundleId();
+					long id2 = ((Bundle) o2).getBundleId();
+					
+					return id1 > id2 ? 1 : (id1 < id2 ? -1 : 0);
+				}
+			});
+			
+			this.bundles = bundles;
+			
+			/*
+			 * the entries of the bundles whose folder is missing, e.g. of a
+			 * bundle whose installation failed once its revision had been
+			 * recorded; the entry of a removed bundle whose folder could not
+			 * be deleted is kept until it is
+			 */
+			Set bundleIds = new HashSet();
+			for (int i = 0; i < bundles.length; i++) {
+				bundleIds.add(Long.valueOf(bundles[i].getBundleId()));
+			}
+			
+			for (int i = 0; i < folders.length; i++) {
+				if (folders[i].exists()) {
+					try {
+						bundleIds.add(Long.valueOf(folders[i].getName()));
+					} catch (NumberFormatException e) {
+						// not a bundle folder
+					}
+				}
+			}
+			
+			journal.retain(bundleIds);
+			
+			/*
+			 * the blobs of the revisions removed
+			 */
+			blobStore.sweep();
+			
+			/*
+			 * drop the records of the bundles removed and of the changes
+			 * superseded since the last compaction
+			 */
+			try {
+				journal.compact();
+			} catch (IOException e) {
+				framework.log(LogService.LOG_ERROR, e.getMessage(), e);
+			}
+		}
+	}
+	
+	/*
+	 * The i-th element is the bundle fetched from the i-th folder, null if the
+	 * folder has been removed.
+	 */
+	private AbstractBundle[] fetchBundles(final File[] folders) {
+		final AbstractBundle[] fetched = new AbstractBundle[folders.length];
+		
+		int threads = Runtime.getRuntime().availableProcessors();
+		
+		String str = framework.getProperty(Constants0.STORAGE_FETCH_THREADS);
+		if (str != null) {
+			threads = Math.max(1, Integer.parseInt(str.trim()));
+		}
+		
+		threads = Math.min(threads, folders.length);
+		
+		if (threads <= 1) {
+			for (int i = 0; i < folders.length; i++) {
+				fetched[i] = fetchBundle(folders[i]);
+			}
+			
+			return fetched;
+		}
+		
+		SerialExecutorService[] executors = new SerialExecutorService[threads];
+		for (int i = 0; i < threads; i++) {
+			executors[i] = new SerialExecutorService(new StringBuilder(getClass().getName()).append(" fetchBundles #").append(i).toString());
+			executors[i].setExceptionHandler(framework.getExecutorExceptionHandler());
+		}
+		
+		Future[] futures = new Future[folders.length];
+		
+		try {
+			for (int i = 0; i < folders.length; i++) {
+				final int index = i;
+				
+				futures[i] = executors[i % threads].submit(new Runnable() {
+					public void run() {
+						fetched[index] = fetchBundle(folders[index]);
 					}
 				});
 			}
+			
+			for (int i = 0; i < futures.length; i++) {
+				futures[i].get();
+			}
+		} finally {
+			for (int i = 0; i < threads; i++) {
+				executors[i].shutdown();
+			}
 		}
+		
+		return fetched;
 	}
 
 	private File getBundleFolder(long bundleId) {
@@ -352,7 +611,7 @@ class Storage {
 	}
 
 	private BundleURLClassPath createBundleURLClassPath(Bundle bundle, Version version,
-			File bundleFile, File cache, boolean alreadyCached)
+			File bundleFile, File cache, Map blobs, boolean alreadyCached)
 			throws Exception {
 		String bundleClassPath = (String) bundle.getHeaders().get(
 				Constants.BUNDLE_CLASSPATH);
@@ -369,38 +628,23 @@ class Storage {
 
 		String[] classPaths = new String[0];
 
+		JarContent[] contents = new JarContent[0];
+
+		/*
+		 * "." and directories are read from the bundle file
+		 */
+		JarContent bundleContent = null;
+
 		for (int i = 0; i < entries.length; i++) {
 			String classPath = entries[i].getName();
 			if (classPath.startsWith("/")) {
 				classPath = classPath.substring(1);
 			}
 
+			JarContent content;
 			if (classPath.endsWith(".jar")) {
 				try {
-					File file = new File(cache, classPath);
-					if (!alreadyCached) {
-						file.getParentFile().mkdirs();
-
-						String url = new StringBuilder("jar:").append(
-								bundleFile.toURI().toURL().toString()).append(
-								"!/").append(classPath).toString();
-
-						OutputStream os = new FileOutputStream(file);
-
-						InputStream is = new URL(url).openStream();
-
-						IOUtil.copy(is, os);
-
-						is.close();
-
-						os.close();
-					} else {
-						if (!file.exists()) {
-							throw new IOException(new StringBuilder(
-									"classpath ").append(classPath).append(
-									" not found").toString());
-						}
-					}
+					content = createJarContent(bundleFile, classPath, cache, blobs);
 				} catch (IOException e) {
 					/*
 					 * 3.8.1 The Framework must ignore a target in the
@@ -418,9 +662,17 @@ class Storage {
 
 					continue;
 				}
+			} else {
+				if (bundleContent == null) {
+					bundleContent = new ZipJarContent(bundleFile, jarFilePool);
+				}
+				
+				content = bundleContent;
 			}
 			
 			classPaths = (String[]) ArrayUtil.add(classPaths, classPath);					
+
+			contents = (JarContent[]) ArrayUtil.add(contents, content);					
 		}
 
 		if (!alreadyCached) {
@@ -428,7 +680,16 @@ class Storage {
 					Constants.BUNDLE_NATIVECODE);
 
 			if (bundleNativeCode != null) {
-				entries = ManifestEntry.parse(bundleNativeCode);
+				try {
+					entries = ManifestEntry.parse(bundleNativeCode);
+				} catch (Exception e) {
+					/*
+					 * an invalid header is ignored, as by BundleMetadata: no
+					 * library is extracted
+					 */
+					entries = new ManifestEntry[0];
+				}
+
 				for (int i = 0; i < entries.length; i++) {
 					ManifestEntry entry = entries[i];
 					String libPath = entry.getName();
@@ -439,6 +700,13 @@ class Storage {
 						.append(libPath).toString();
 
 					File file = new File(cache, libPath);
+					if (file.exists()) {
+						/*
+						 * extracted while the bundle file was written
+						 */
+						continue;
+					}
+					
 					file.getParentFile().mkdirs();
 					OutputStream os = new FileOutputStream(file);
 					InputStream is = new URL(url).openStream();
@@ -452,12 +720,57 @@ class Storage {
 			}
 		}
 
-		BundleURLClassPath urlClassPath = new BundleURLClassPathImpl(bundle,
-				version, classPaths, cache);
+		BundleURLClassPath urlClassPath = new BundleURLClassPathImpl(framework,
+				bundle, version, classPaths, contents);
 
 		return urlClassPath;
 	}
 
+	/*
+	 * A jar stored without compression in the bundle file is read in place,
+	 * while a compressed one is extracted to the bundle cache once and read
+	 * from there afterwards, as the jars extracted by former versions of the
+	 * framework. A jar extracted at install time is shared through the blob
+	 * store.
+	 */
+	private JarContent createJarContent(File bundleFile, String classPath, File cache, Map blobs) throws IOException {
+		String digest = (String) blobs.get(classPath);
+		if (digest != null) {
+			return new ZipJarContent(blobStore.getFile(digest), jarFilePool);
+		}
+		
+		File file = new File(cache, classPath);
+		if (file.exists()) {
+			return new ZipJarContent(file, jarFilePool);
+		}
+
+		/*
+		 * the entry index of the jar is stored next to where it would be extracted
+		 */
+		file.getParentFile().mkdirs();
+
+		JarContent content = NestedJarContent.open(bundleFile, classPath, cache);
+		if (content == null) {
+			String url = new StringBuilder("jar:").append(
+					bundleFile.toURI().toURL().toString()).append(
+					"!/").append(classPath).toString();
+
+			OutputStream os = new FileOutputStream(file);
+
+			InputStream is = new URL(url).openStream();
+
+			IOUtil.copy(is, os);
+
+			is.close();
+
+			os.close();
+
+			content = new ZipJarContent(file, jarFilePool);
+		}
+
+		return content;
+	}
+
 	Bundle install(String location, InputStream is) throws BundleException {
 		synchronized (bundlesLock) {
 			/*
@@ -476,37 +789,23 @@ class Storage {
 
 			AbstractBundle bundle = null;
 
+			File temp = null;
+
 			try {
 				if (is == null) {
 					URL url = new URL(location);
 					is = url.openStream();
 				}
 
-				File temp = new File(getTempFolder(), Long.toString(System.currentTimeMillis()));
-
-				OutputStream os;
-				
-				os = new FileOutputStream(temp);
-				IOUtil.copy(is, os);
-				os.close();
+				temp = new File(getTempFolder(), Long.toString(System.currentTimeMillis()));
 
-				is.close();
+				BundleFileWriter writer = writeBundleFile(temp, is);
 
-				/*
-				 * instead of JarInputStream.getManifest() who aspects
-				 * MANIFEST.MF as the first entry
-				 */
-				Manifest manifest = ManifestUtil.getJarManifest(new FileInputStream(temp));
-				Dictionary headers = ManifestUtil.toDictionary(manifest);
+				Dictionary headers = writer.getHeaders();
 
 				Version version = Version.parseVersion((String) headers.get(Constants.BUNDLE_VERSION));
 				File cache = createNewCache(bundleId, version);
 
-				File manifestFile = new File(cache, BUNDLE_MANIFEST_FILE);
-				os = new FileOutputStream(manifestFile);
-				ManifestUtil.storeManifest(headers, os);
-				os.close();
-
 				/*
 				 * check if it is an boot class path extension bundle, in that
 				 * case install it
@@ -593,17 +892,19 @@ class Storage {
 					bundle = new HostBundle(framework);
 				}
 
-				File bundlefile = new File(cache, Storage.BUNDLE_FILE);
-				temp.renameTo(bundlefile);
+				Map blobs = new HashMap();
+
+				File bundlefile = storeBundleFile(writer, temp, cache, blobs);
 
 				/*
-				 * Create BundleInfo instance
+				 * Create BundleInfo instance, the bundle file may be older
+				 * when it is shared
 				 */
-				long lastModified = bundlefile.lastModified();
+				long lastModified = System.currentTimeMillis();
 				BundleInfo info = new BundleInfo(bundleId, location, lastModified, framework.getInitialBundleStartLevel());
-				info.setHeaders(headers);
+				setHeaders(info, headers);
 				info.setCache(cache);	
-				storeBundleInfo(info);
+				storeRevision(info);
 				
 				bundleInfosByBundle.put(bundle, info);
 
@@ -611,31 +912,74 @@ class Storage {
 				 * Create BundleURLClassPath instance
 				 */
 				BundleURLClassPath classPath = createBundleURLClassPath(bundle, version,
-						bundlefile, cache, false);
+						bundlefile, cache, blobs, false);
 				classPathsByBundle.put(
 						bundle,
 						new BundleURLClassPath[] { classPath });
 
 				synchronized (bundlesLock) {
-					bundles = (Bundle[]) ArrayUtil.add(bundles, bundle);
+					addBundle(bundle, info);
 				}
 
 				return bundle;
 			} catch (Exception e) {
 				if (bundle != null) {
+					bundleInfosByBundle.remove(bundle);
+					
+					BundleURLClassPath[] classPaths = (BundleURLClassPath[]) classPathsByBundle.remove(bundle);
+					if (classPaths != null) {
+						close(classPaths);
+					}
+					
 					File bundleFolder = getBundleFolder(bundleId);
 					try {
 						IOUtil.delete(bundleFolder);
+						
+						/*
+						 * the revision may have been recorded already
+						 */
+						journal.remove(bundleId);
 					} catch (IOException e1) {
+						/*
+						 * a revision recorded is removed at the next startup,
+						 * as if uninstalled
+						 */
+						StorageJournal.Entry entry = journal.get(bundleId);
+						if (entry != null) {
+							try {
+								journal.setRemovalPending(bundleId, entry.version);
+							} catch (IOException e2) {
+								framework.log(LogService.LOG_ERROR, e2.getMessage(), e2);
+							}
+						}
 					}
 				}
 
 				e.printStackTrace();
 				throw new BundleException(e.getMessage(), e);
+			} finally {
+				if (temp != null) {
+					deleteTempFiles(temp);
+				}
 			}
 		}
 	}
 
+	/*
+	 * A header that cannot be parsed is ignored as if it were missing, and
+	 * reported.
+	 */
+	private void setHeaders(BundleInfo info, Dictionary headers) {
+		info.setHeaders(headers);
+		
+		Iterator it = info.getMetadata().getErrors().entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry entry = (Map.Entry) it.next();
+			
+			framework.log(LogService.LOG_WARNING, new StringBuilder("Invalid ").append(entry.getKey()).append(" header of Bundle(location=").append(info.getLocation()).append(")").toString(), (Throwable) entry.getValue());
+		}
+	}
+
 	private BundleInfo getBundleInfo(Bundle bundle) {
 		synchronized (bundleInfosLock) {
 			BundleInfo info = (BundleInfo) bundleInfosByBundle.get(bundle);
@@ -644,58 +988,383 @@ class Storage {
 		}
 	}
 	
-	String getLibraryPath(Bundle bundle, String libfilename) throws IOException {
+	/*
+	 * Names of the classes the bundle revision defined during the last startup,
+	 * null if they have not been recorded. The profile is kept in the cache of
+	 * the revision, hence it is dropped when the bundle is updated.
+	 */
+	String[] getPreloadProfile(Bundle bundle) {
 		BundleInfo info = getBundleInfo(bundle);
-
-		File file = new File(info.getCache(), libfilename);
-
-		return file.getCanonicalPath();
-	}
-
-	BundleURLClassPath getBundleURLClassPath(Bundle bundle, Version version) {
-		BundleURLClassPath[] classPaths = (BundleURLClassPath[]) classPathsByBundle.get(bundle);
-		for (int i = 0; i < classPaths.length; i++) {
-			if (classPaths[i].getVersion().equals(version)) {
-				return classPaths[i];
-			}
+		if (info == null || info.getCache() == null) {
+			return null;
 		}
 		
-		return null;
-	}
-
-	private Bundle getBundle(String location) {
-		synchronized (bundlesLock) {
-			for (int i = 0; i < bundles.length; i++) {
-				Bundle bundle = bundles[i];
-				if (bundle.getLocation().equals(location)) {
-					return bundle;
+		File file = new File(info.getCache(), PRELOAD_PROFILE_FILE);
+		if (!file.exists()) {
+			return null;
+		}
+		
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != PRELOAD_PROFILE_MAGIC) {
+					return null;
+				}
+				
+				String[] classNames = new String[in.readInt()];
+				for (int i = 0; i < classNames.length; i++) {
+					classNames[i] = in.readUTF();
 				}
+				
+				return classNames;
+			} finally {
+				in.close();
 			}
-
+		} catch (IOException e) {
+			/*
+			 * truncated or corrupted, it is recorded again
+			 */
 			return null;
 		}
 	}
-
-	private boolean isBundleInstalled(String symbolicName) {
-		Bundle[] bundles = getBundles();
-		for (int i = 0; i < bundles.length; i++) {
-			if (bundles[i].getSymbolicName().equals(symbolicName)) {
-				return true;
+	
+	/*
+	 * The profile is written to a temporary file first, so that a crash never
+	 * leaves a partial profile behind.
+	 */
+	void setPreloadProfile(Bundle bundle, String[] classNames) throws IOException {
+		BundleInfo info = getBundleInfo(bundle);
+		if (info == null || info.getCache() == null) {
+			return;
+		}
+		
+		File file = new File(info.getCache(), PRELOAD_PROFILE_FILE);
+		
+		File temp = new File(file.getPath().concat(".tmp"));
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(PRELOAD_PROFILE_MAGIC);
+			
+			out.writeInt(classNames.length);
+			for (int i = 0; i < classNames.length; i++) {
+				out.writeUTF(classNames[i]);
 			}
+		} finally {
+			out.close();
 		}
 		
-		return false;
+		file.delete();
+		
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			
+			throw new IOException(new StringBuilder("Cannot store ").append(file).toString());
+		}
 	}
-
-	void setRemovalPending(Bundle bundle) {
+	
+	/*
+	 * The snapshot taken at the last shutdown, null if there is none. The file
+	 * is deleted once read: should the framework not be shut down cleanly, the
+	 * bundles are resolved on the next startup.
+	 */
+	WiringSnapshot getWiringSnapshot() throws IOException {
+		File file = new File(storagePath, WIRING_FILE);
+		if (!file.exists()) {
+			return null;
+		}
+		
 		try {
-			BundleInfo info = getBundleInfo(bundle);
-
-			info.setRemovalPending(true);
-
-			storeBundleInfo(info);
-		} catch (IOException e) {
-			framework.log(LogService.LOG_ERROR, e.getMessage(), e);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				return WiringSnapshot.read(in);
+			} finally {
+				in.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+	
+	void setWiringSnapshot(WiringSnapshot snapshot) throws IOException {
+		File file = new File(storagePath, WIRING_FILE);
+		
+		File temp = new File(file.getPath().concat(".tmp"));
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			snapshot.write(out);
+		} finally {
+			out.close();
+		}
+		
+		file.delete();
+		
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			
+			throw new IOException(new StringBuilder("Cannot store ").append(file).toString());
+		}
+	}
+	
+	/*
+	 * The bundle file is written to the given temporary file reading the input
+	 * stream once.
+	 */
+	private static File getTempEntriesFolder(File temp) {
+		return new File(temp.getPath().concat(".entries"));
+	}
+	
+	private BundleFileWriter writeBundleFile(File temp, InputStream is) throws Exception {
+		BundleFileWriter writer = new BundleFileWriter(temp, getTempEntriesFolder(temp));
+		
+		writer.write(is);
+		
+		if (writer.getHeaders() == null) {
+			temp.delete();
+			
+			throw new BundleException("Missing manifest.");
+		}
+		
+		return writer;
+	}
+	
+	/*
+	 * The bundle file and the entries extracted while it was written are left
+	 * in the temporary folder if the installation or the update fails, or if
+	 * the update is not newer; once stored in the cache they are gone already.
+	 */
+	private void deleteTempFiles(File temp) {
+		temp.delete();
+		
+		File entries = getTempEntriesFolder(temp);
+		if (entries.exists()) {
+			try {
+				IOUtil.delete(entries);
+			} catch (IOException e) {
+				framework.log(LogService.LOG_WARNING, new StringBuilder("Cannot delete ").append(entries).toString(), e);
+			}
+		}
+	}
+	
+	/*
+	 * Completes the cache of a revision: the bundle file and the entries
+	 * extracted while it was written are moved to the blob store or to the
+	 * cache, then the blob table, the manifest and the entry index are stored.
+	 * Returns the bundle file.
+	 */
+	private File storeBundleFile(BundleFileWriter writer, File temp, File cache, Map blobs) throws IOException {
+		String digest = BlobStore.toHex(writer.getDigest());
+		
+		File bundleFile = blobStore.add(temp, digest);
+		
+		blobs.put(BUNDLE_FILE, digest);
+		
+		writer.moveExtractedEntries(cache, blobStore, blobs);
+		
+		BlobStore.storeTable(new File(cache, BUNDLE_BLOBS_FILE), blobs);
+		
+		storeManifest(cache, bundleFile, writer.getHeaders());
+		
+		try {
+			new EntryIndex(writer.getEntryNames()).store(ZipJarContent.getIndexFile(bundleFile), bundleFile);
+		} catch (IOException e) {
+			// the index is built when needed
+		}
+		
+		return bundleFile;
+	}
+	
+	/*
+	 * The headers of a revision are read from its bundle manifest file, the
+	 * bundle file is scanned only if the manifest file is missing or if the
+	 * bundle file has changed since it has been written.
+	 */
+	private Dictionary fetchHeaders(File cache, File bundleFile) throws Exception {
+		Dictionary headers = fetchManifest(cache, bundleFile);
+		if (headers != null) {
+			return headers;
+		}
+		
+		/*
+		 * instead of JarInputStream.getManifest() who aspects MANIFEST.MF as
+		 * the first entry
+		 */
+		Manifest manifest = ManifestUtil.getJarManifest(new FileInputStream(bundleFile));
+		if (manifest == null) {
+			throw new BundleException(new StringBuilder("Missing manifest in ").append(bundleFile).toString());
+		}
+		
+		headers = ManifestUtil.toDictionary(manifest);
+		
+		try {
+			storeManifest(cache, bundleFile, headers);
+		} catch (IOException e) {
+			framework.log(LogService.LOG_WARNING, new StringBuilder("Cannot store the manifest of ").append(bundleFile).toString(), e);
+		}
+		
+		return headers;
+	}
+	
+	/*
+	 * null if the manifest file is missing, stale or corrupted
+	 */
+	private Dictionary fetchManifest(File cache, File bundleFile) {
+		File file = new File(cache, BUNDLE_MANIFEST_FILE);
+		if (!file.exists()) {
+			return null;
+		}
+		
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != BUNDLE_MANIFEST_MAGIC) {
+					return null;
+				}
+				
+				if (in.readLong() != bundleFile.length() || in.readLong() != bundleFile.lastModified()) {
+					return null;
+				}
+				
+				Dictionary headers = new CaseSensitiveDictionary(true);
+				
+				int size = in.readInt();
+				for (int i = 0; i < size; i++) {
+					String name = readString(in);
+					String value = readString(in);
+					
+					headers.put(name, value);
+				}
+				
+				return headers;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/*
+	 * Stores the headers along with the size and the last modification time
+	 * of the bundle file, which must be in place.
+	 */
+	private void storeManifest(File cache, File bundleFile, Dictionary headers) throws IOException {
+		File file = new File(cache, BUNDLE_MANIFEST_FILE);
+		
+		File temp = new File(file.getPath().concat(".tmp"));
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(BUNDLE_MANIFEST_MAGIC);
+			
+			out.writeLong(bundleFile.length());
+			
+			out.writeLong(bundleFile.lastModified());
+			
+			out.writeInt(headers.size());
+			for (Enumeration e = headers.keys(); e.hasMoreElements(); ) {
+				String name = (String) e.nextElement();
+				
+				writeString(out, name);
+				writeString(out, (String) headers.get(name));
+			}
+		} finally {
+			out.close();
+		}
+		
+		file.delete();
+		
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			
+			throw new IOException(new StringBuilder("Cannot store ").append(file).toString());
+		}
+	}
+	
+	/*
+	 * header values may exceed the 64K limit of writeUTF
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		
+		in.readFully(bytes);
+		
+		return new String(bytes, "UTF-8");
+	}
+	
+	String getLibraryPath(Bundle bundle, String libfilename) throws IOException {
+		BundleInfo info = getBundleInfo(bundle);
+
+		File file = new File(info.getCache(), libfilename);
+
+		return file.getCanonicalPath();
+	}
+
+	/*
+	 * Returns null once the bundle has been removed.
+	 */
+	BundleURLClassPath getBundleURLClassPath(Bundle bundle, Version version) {
+		BundleURLClassPath[] classPaths = (BundleURLClassPath[]) classPathsByBundle.get(bundle);
+		if (classPaths == null) {
+			return null;
+		}
+		
+		for (int i = 0; i < classPaths.length; i++) {
+			if (classPaths[i].getVersion().equals(version)) {
+				return classPaths[i];
+			}
+		}
+		
+		return null;
+	}
+
+	/*
+	 * Must be invoked holding bundlesLock, the bundle has the highest id.
+	 */
+	private void addBundle(Bundle bundle, BundleInfo info) {
+		bundles = (Bundle[]) ArrayUtil.add(bundles, bundle);
+		
+		bundlesById.put(Long.valueOf(info.getBundleId()), bundle);
+		
+		bundlesByLocation.putIfAbsent(info.getLocation(), bundle);
+	}
+
+	private Bundle getBundle(String location) {
+		if (location == null) {
+			return null;
+		}
+		
+		return (Bundle) bundlesByLocation.get(location);
+	}
+
+	private boolean isBundleInstalled(String symbolicName) {
+		Bundle[] bundles = getBundles();
+		for (int i = 0; i < bundles.length; i++) {
+			if (bundles[i].getSymbolicName().equals(symbolicName)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+
+	void setRemovalPending(Bundle bundle) {
+		try {
+			BundleInfo info = getBundleInfo(bundle);
+
+			info.setRemovalPending(true);
+
+			journal.setRemovalPending(info.getBundleId(), info.getCache().getName());
+		} catch (IOException e) {
+			framework.log(LogService.LOG_ERROR, e.getMessage(), e);
 		}
 	}
 
@@ -704,6 +1373,28 @@ class Storage {
 			bundleFoldersById.remove(Long.valueOf(bundle.getBundleId()));
 
 			bundles = (Bundle[]) ArrayUtil.remove(bundles, bundle);
+			
+			bundlesById.remove(Long.valueOf(bundle.getBundleId()));
+			
+			BundleInfo info = getBundleInfo(bundle);
+			if (info != null && bundlesByLocation.remove(info.getLocation(), bundle)) {
+				/*
+				 * another bundle installed from the same location
+				 */
+				for (int i = 0; i < bundles.length; i++) {
+					BundleInfo info0 = getBundleInfo(bundles[i]);
+					if (info0 != null && info0.getLocation().equals(info.getLocation())) {
+						bundlesByLocation.putIfAbsent(info0.getLocation(), bundles[i]);
+						
+						break;
+					}
+				}
+			}
+
+			BundleURLClassPath[] classPaths = (BundleURLClassPath[]) classPathsByBundle.remove(bundle);
+			if (classPaths != null) {
+				close(classPaths);
+			}
 
 			/*
 			 * uninstalled / old version(s) bundle(s) file(s) will be physically
@@ -712,24 +1403,40 @@ class Storage {
 		}
 	}
 
-	Bundle getBundle(long id) {
+	/*
+	 * Closes the class paths of the revisions the bundle has been updated
+	 * from, once it has been refreshed: no class loader reads them anymore.
+	 */
+	void closeStaleClassPaths(Bundle bundle) {
 		synchronized (bundlesLock) {
-			for (int i = 0; i < bundles.length; i++) {
-				Bundle bundle = bundles[i];
-				if (bundle.getBundleId() == id) {
-					return bundle;
+			BundleURLClassPath[] classPaths = (BundleURLClassPath[]) classPathsByBundle.get(bundle);
+			if (classPaths == null || classPaths.length < 2) {
+				return;
+			}
+			
+			Version version = bundle.getVersion();
+			
+			BundleURLClassPath[] currentClassPaths = new BundleURLClassPath[0];
+			for (int i = 0; i < classPaths.length; i++) {
+				if (classPaths[i].getVersion().equals(version)) {
+					currentClassPaths = (BundleURLClassPath[]) ArrayUtil.add(currentClassPaths, classPaths[i]);
+				} else {
+					classPaths[i].close();
 				}
 			}
-
-			return null;
+			
+			classPathsByBundle.put(bundle, currentClassPaths);
 		}
 	}
 
+	Bundle getBundle(long id) {
+		return (Bundle) bundlesById.get(Long.valueOf(id));
+	}
+
 	Bundle[] getBundles() {
-		synchronized (bundlesLock) {
-			return (Bundle[]) ArrayUtil.copyOf(this.bundles,
-					this.bundles.length);
-		}
+		Bundle[] bundles = this.bundles;
+		
+		return (Bundle[]) ArrayUtil.copyOf(bundles, bundles.length);
 	}
 
 	long getBundleId(Bundle bundle) {
@@ -754,6 +1461,15 @@ class Storage {
 		}
 	}
 
+	/*
+	 * null if the bundle has been uninstalled
+	 */
+	BundleMetadata getBundleMetadata(Bundle bundle) {
+		BundleInfo info = getBundleInfo(bundle);
+
+		return info != null ? info.getMetadata() : null;
+	}
+
 	Dictionary getHeaders(Bundle bundle) {
 		synchronized (bundlesLock) {
 			BundleInfo info = getBundleInfo(bundle);
@@ -771,39 +1487,25 @@ class Storage {
 			BundleInfo currentInfo = getBundleInfo(bundle);
 
 			Version currentVersion = bundle.getVersion();
-			try {
-				File temp = new File(getTempFolder(), Long.toString(System.currentTimeMillis()));
 
-				OutputStream os;
-				
-				os = new FileOutputStream(temp);
-				IOUtil.copy(is, os);
-				os.close();
+			File temp = null;
+			try {
+				temp = new File(getTempFolder(), Long.toString(System.currentTimeMillis()));
 
-				is.close();
+				BundleFileWriter writer = writeBundleFile(temp, is);
 
-				/*
-				 * instead of JarInputStream.getManifest() who aspects
-				 * MANIFEST.MF as the first entry
-				 */
-				Manifest manifest = ManifestUtil.getJarManifest(new FileInputStream(temp));
-				Dictionary newHeaders = ManifestUtil.toDictionary(manifest);
+				Dictionary newHeaders = writer.getHeaders();
 				Version newVersion = Version.parseVersion((String) newHeaders.get(Constants.BUNDLE_VERSION));
 
 				if (newVersion.compareTo(currentVersion) > 0) {
 					long newBundleId = bundle.getBundleId();
 					newCache = createNewCache(newBundleId, newVersion);
 
-					File bundlefile = new File(newCache, BUNDLE_FILE);
-
-					File manifestFile = new File(newCache, BUNDLE_MANIFEST_FILE);
-					os = new FileOutputStream(manifestFile);
-					ManifestUtil.storeManifest(newHeaders, os);
-					os.close();
+					Map blobs = new HashMap();
 
-					temp.renameTo(bundlefile);
+					File bundlefile = storeBundleFile(writer, temp, newCache, blobs);
 
-					BundleURLClassPath newClassPath = createBundleURLClassPath(bundle, newVersion, bundlefile, newCache, false);
+					BundleURLClassPath newClassPath = createBundleURLClassPath(bundle, newVersion, bundlefile, newCache, blobs, false);
 					
 					BundleURLClassPath[] classPaths = (BundleURLClassPath[]) classPathsByBundle.get(bundle);
 					classPaths = (BundleURLClassPath[]) ArrayUtil.add(classPaths, newClassPath);
@@ -813,17 +1515,19 @@ class Storage {
 					/*
 					 * the newer bundle has been succefully installed: update
 					 */
-					long newLastModified = bundlefile.lastModified();
+					long newLastModified = System.currentTimeMillis();
 					BundleInfo newInfo = new BundleInfo(bundle.getBundleId(),
 							bundle.getLocation(), newLastModified, framework.getInitialBundleStartLevel());
-					newInfo.setHeaders(newHeaders);
+					setHeaders(newInfo, newHeaders);
 					newInfo.setCache(newCache);
 					newInfo.setStartLevel(currentInfo.getStartLevel());
 					newInfo.setAutostartSetting(currentInfo.getAutostartSetting());
-					storeBundleInfo(newInfo);
+					storeRevision(newInfo);
 
+					/*
+					 * the new revision record supersedes the current one
+					 */
 					currentInfo.setRemovalPending(true);
-					storeBundleInfo(currentInfo);
 					
 					/*
 					 * BundleInfo up-to-date to the last version available
@@ -840,6 +1544,10 @@ class Storage {
 				}
 
 				throw new BundleException(e.getMessage(), e);
+			} finally {
+				if (temp != null) {
+					deleteTempFiles(temp);
+				}
 			}
 		}
 	}
@@ -909,9 +1617,15 @@ class Storage {
 				});
 		
 		bundles = new Bundle[] { framework };
+		
+		bundlesById.clear();
+		bundlesById.put(Long.valueOf(0L), framework);
+		
+		bundlesByLocation.clear();
+		bundlesByLocation.put(Constants.SYSTEM_BUNDLE_LOCATION, framework);
 	}
 
-	private Bundle fetchBundle(File bundleFolder) {
+	private AbstractBundle fetchBundle(File bundleFolder) {
 		try {
 			File[] caches = new File(bundleFolder, BUNDLE_CACHE_FOLDER).listFiles();
 			if (caches == null) {
@@ -924,45 +1638,108 @@ class Storage {
 				}
 			});
 			
-
+			long bundleId = Long.parseLong(bundleFolder.getName());
+			
+			BundleInfo info = null;
+			
 			File cache = caches[0];
-			File bundleInfoFile = new File(cache, BUNDLE_INFO_FILE);
-			BundleInfo info = fetchBundleInfo(bundleInfoFile);
+			
+			StorageJournal.Entry entry = journal.get(bundleId);
+			if (entry != null) {
+				/*
+				 * the revision recorded last, a newer cache is left by an
+				 * update which has not completed
+				 */
+				for (int i = 0; i < caches.length; i++) {
+					if (caches[i].getName().equals(entry.version)) {
+						cache = caches[i];
+						
+						info = new BundleInfo(bundleId, entry.location, entry.lastModified, entry.startLevel);
+						info.setAutostartSetting(entry.autostartSetting);
+						info.setRemovalPending(entry.removalPending);
+						
+						break;
+					}
+				}
+			} else {
+				File bundleInfoFile = new File(cache, BUNDLE_INFO_FILE);
+				if (bundleInfoFile.exists()) {
+					info = fetchBundleInfo(bundleInfoFile);
+					
+					info.setCache(cache);
+					
+					storeRevision(info);
+					
+					if (info.isRemovalPending()) {
+						journal.setRemovalPending(bundleId, cache.getName());
+					}
+					
+					bundleInfoFile.delete();
+				}
+			}
+			
+			if (info == null) {
+				info = recoverRevision(bundleId, entry, caches);
+				if (info != null) {
+					cache = info.getCache();
+				}
+			}
+			
 			/*
 			 * If the bundle has been uninstalled, remove it completly from the
 			 * storage and return null.
 			 */
 			if (info == null || info.isRemovalPending()) {
-				IOUtil.delete(cache);
+				/*
+				 * the entry is kept until the folder is gone, otherwise what is
+				 * left of the folder would be recovered at the next startup
+				 */
+				try {
+					IOUtil.delete(bundleFolder);
+				} catch (IOException e) {
+					framework.log(LogService.LOG_WARNING, new StringBuilder("Cannot delete ").append(bundleFolder).toString(), e);
+					
+					return null;
+				}
+				
+				journal.remove(bundleId);
 
 				return null;
 			}
 			
+			info.setCache(cache);
+			
 			/*
-			 * Remove old versions
+			 * the bundle file of the revisions installed before the blob
+			 * store is in the cache
 			 */
-			for (int i = 1; i < caches.length; i++) {
-				IOUtil.delete(cache);
+			Map blobs = BlobStore.loadTable(new File(cache, BUNDLE_BLOBS_FILE));
+			
+			String digest = (String) blobs.get(BUNDLE_FILE);
+			
+			File bundleFile = digest != null ? blobStore.getFile(digest) : new File(cache, BUNDLE_FILE);
+			if (!bundleFile.exists()) {
+				throw new IOException(new StringBuilder("Missing ").append(bundleFile).toString());
 			}
 			
-			info.setCache(cache);
+			for (Iterator it = blobs.values().iterator(); it.hasNext(); ) {
+				blobStore.reference((String) it.next());
+			}
 			
+			Dictionary headers = fetchHeaders(cache, bundleFile);
 
-			Manifest manifest = ManifestUtil.getJarManifest(new FileInputStream(new File(cache, BUNDLE_FILE)));
-//			File manifestFile = new File(cache, BUNDLE_MANIFEST_FILE);
-//			Manifest manifest = new Manifest();
-			Dictionary headers = ManifestUtil.toDictionary(manifest);
-
-			info.setHeaders(headers);
+			setHeaders(info, headers);
 
 			Version lastVersion = Version.parseVersion((String) headers.get(Constants.BUNDLE_VERSION));
 			
 			/*
-			 * Clean up previous versions
+			 * Clean up the other versions
 			 */
 			
-			for (int i = 1; i < caches.length; i++) {
-				IOUtil.delete(caches[i]);
+			for (int i = 0; i < caches.length; i++) {
+				if (caches[i] != cache) {
+					IOUtil.delete(caches[i]);
+				}
 			}
 
 			AbstractBundle bundle = null;
@@ -972,18 +1749,19 @@ class Storage {
 				bundle = new HostBundle(framework);
 			}
 
-			bundleInfosByBundle.put(bundle, info);
-
-			File bundleFile = new File(cache, BUNDLE_FILE);
-
-			BundleURLClassPath classPath = createBundleURLClassPath(bundle, lastVersion, bundleFile, cache, true);
-			classPathsByBundle.put(
-					bundle,
-					new BundleURLClassPath[] { classPath });
+			synchronized (bundleInfosLock) {
+				bundleInfosByBundle.put(bundle, info);
+			}
 
-			if (bundle instanceof HostBundle) {
-				int startlevel = info.getStartLevel();
-				framework.setBundleStartLevel(bundle, startlevel);
+			BundleURLClassPath classPath = createBundleURLClassPath(bundle, lastVersion, bundleFile, cache, blobs, true);
+			
+			/*
+			 * bundles are fetched concurrently
+			 */
+			synchronized (bundleInfosLock) {
+				classPathsByBundle.put(
+						bundle,
+						new BundleURLClassPath[] { classPath });
 			}
 
 			return bundle;
@@ -992,6 +1770,12 @@ class Storage {
 			framework.log(LogService.LOG_ERROR,
 					new StringBuilder("A problem occurred processing ").append(
 							bundleFolder.getAbsolutePath()).append(" folder.").toString(), e);
+			try {
+				journal.remove(Long.parseLong(bundleFolder.getName()));
+			} catch (NumberFormatException e1) {
+				// not a bundle folder
+			}
+			
 			try {
 				IOUtil.delete(bundleFolder);
 			} catch (IOException e1) {
@@ -1002,18 +1786,103 @@ class Storage {
 		}
 	}
 
-	private long getNextBundleId() {
-		long maxBundleId = 0;
-
-		for (int i = 0; i < bundles.length; i++) {
-			long bundleId = bundles[i].getBundleId();
-
-			maxBundleId = Math.max(maxBundleId, bundleId);
+	/*
+	 * The journal has no entry for the bundle, or its entry refers to a cache
+	 * which is missing: the newest revision whose bundle file has been stored
+	 * is recorded again, rather than the bundle being removed. Returns null if
+	 * there is none.
+	 */
+	private BundleInfo recoverRevision(long bundleId, StorageJournal.Entry entry, File[] caches) throws IOException {
+		for (int i = 0; i < caches.length; i++) {
+			File cache = caches[i];
+			if (!new File(cache, BUNDLE_BLOBS_FILE).exists() && !new File(cache, BUNDLE_FILE).exists()) {
+				continue;
+			}
+			
+			String location;
+			int startLevel;
+			if (entry != null) {
+				location = entry.location;
+				
+				startLevel = entry.startLevel;
+			} else {
+				location = fetchLocation(cache, bundleId);
+				
+				/*
+				 * the start level service is not registered yet
+				 */
+				String str = framework.getProperty("org.osgi.framework.startlevel.initialbundle");
+				
+				startLevel = str != null ? Integer.parseInt(str.trim()) : 1;
+			}
+			
+			framework.log(LogService.LOG_WARNING, new StringBuilder("Recovering the revision ")
+				.append(cache.getName())
+				.append(" of Bundle(id=")
+				.append(bundleId)
+				.append(", location=")
+				.append(location)
+				.append(") missing in the journal.").toString());
+			
+			BundleInfo info = new BundleInfo(bundleId, location, cache.lastModified(), startLevel);
+			if (entry != null) {
+				info.setAutostartSetting(entry.autostartSetting);
+			}
+			info.setCache(cache);
+			
+			storeRevision(info);
+			
+			return info;
 		}
-
-		return maxBundleId + 1;
+		
+		return null;
+	}
+	
+	/*
+	 * The caches written before the location was stored get a location of
+	 * their own.
+	 */
+	private String fetchLocation(File cache, long bundleId) {
+		File file = new File(cache, BUNDLE_LOCATION_FILE);
+		if (file.exists()) {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				try {
+					return readString(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				framework.log(LogService.LOG_WARNING, new StringBuilder("Cannot read ").append(file).toString(), e);
+			}
+		}
+		
+		return new StringBuilder("recovered:").append(bundleId).toString();
+	}
+	
+	private void storeLocation(File cache, String location) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(cache, BUNDLE_LOCATION_FILE))));
+		try {
+			writeString(out, location);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/*
+	 * JavaDoc  Its value is not reused for another bundle, even after a bundle
+	 * is uninstalled.
+	 * 
+	 * The journal keeps the next id, also once the bundles with the highest
+	 * ids have been uninstalled and their records dropped.
+	 */
+	private long getNextBundleId() {
+		return journal.getNextBundleId();
 	}
 
+	/*
+	 * bundleinfo files of storages created before the journal
+	 */
 	private BundleInfo fetchBundleInfo(File file) throws Exception {
 		InputStream is = new FileInputStream(file);
 
@@ -1037,10 +1906,21 @@ class Storage {
 
 	void setBundleAutostartSetting(Bundle bundle, int autostartSetting) {
 		BundleInfo info = getBundleInfo(bundle);
+		if (info.getAutostartSetting() == autostartSetting) {
+			return;
+		}
+		
 		info.setAutostartSetting(autostartSetting);
 
+		/*
+		 * the state of the system bundle is not persistent
+		 */
+		if (info.getBundleId() == 0L) {
+			return;
+		}
+		
 		try {
-			storeBundleInfo(info);
+			journal.setAutostartSetting(info.getBundleId(), autostartSetting);
 		} catch (IOException e) {
 			framework.log(LogService.LOG_ERROR, e.getMessage(), e);
 		}
@@ -1053,25 +1933,34 @@ class Storage {
 	void setBundleStartLevel(Bundle bundle, int startlevel) {
 		synchronized (bundlesLock) {
 			BundleInfo info = getBundleInfo(bundle);
+			if (info.getStartLevel() == startlevel) {
+				return;
+			}
+			
 			info.setStartLevel(startlevel);
 
+			if (info.getBundleId() == 0L) {
+				return;
+			}
+			
 			try {
-				storeBundleInfo(info);
+				journal.setStartLevel(info.getBundleId(), startlevel);
 			} catch (IOException e) {
 				framework.log(LogService.LOG_ERROR, e.getMessage(), e);
 			}
 		}
 	}
 	
-	public void storeBundleInfo(BundleInfo info) throws IOException {
-		File file = new File(info.getCache(), BUNDLE_INFO_FILE);
-		OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
-
-		ObjectOutputStream oos = new ObjectOutputStream(os);
-		oos.writeObject(info);
-		os.flush();
-		os.close();
-
+	private void storeRevision(BundleInfo info) throws IOException {
+		storeLocation(info.getCache(), info.getLocation());
+		
+		journal.addRevision(
+				info.getBundleId(), 
+				info.getLocation(), 
+				info.getCache().getName(), 
+				info.getLastModified(), 
+				info.getStartLevel(), 
+				info.getAutostartSetting());
 	}
 
 	/*
@@ -0,0 +1,933 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.osgi.service.log.LogService;
+
+/*
+ * Persistent state of the installed bundles, kept in a single append-only
+ * file: the framework reads it sequentially once at startup, and every change
+ * (install, update, uninstall, start level, autostart setting) is a small
+ * record appended to its end.
+ *
+ * Each record is framed as
+ *
+ *     length (int) | type (byte) bundle id (long) fields... | CRC32 (int)
+ *
+ * A record torn by a crash fails the check and the journal is truncated to
+ * the last complete record. When the records outnumber the bundles the
+ * journal is compacted: the current state is written to a new file which
+ * then replaces the journal. A new file left by a crash before it replaced
+ * a missing journal is taken as the journal, and a journal which cannot be
+ * read is set aside instead of being overwritten.
+ *
+ * Start level and autostart setting changes are written behind: they are
+ * applied at once and written by a thread after a delay, so that the changes
+ * made in a row are written together and the repeated changes of a bundle are
+ * written once. The pending changes are written before any other record, when
+ * the journal is closed and when the virtual machine exits, hence the journal
+ * never records them out of order; a crash loses the changes of the last delay
+ * at most.
+ *
+ * The records are written through a RandomAccessFile rather than a FileChannel:
+ * the bundles are installed and started on any thread, and an interrupted thread
+ * would close the channel for good.
+ */
+class StorageJournal {
+
+	private final static int MAGIC = 0xF06B10C5;
+
+	private final static int FORMAT = 1;
+
+	private final static int HEADER_SIZE = 8;
+
+	private final static int MAX_RECORD_SIZE = 1 << 20;
+
+	/*
+	 * location, version (name of the cache folder), last modified, start
+	 * level and autostart setting of a bundle revision
+	 */
+	private final static byte REVISION = 1;
+
+	private final static byte START_LEVEL = 2;
+
+	private final static byte AUTOSTART_SETTING = 3;
+
+	/*
+	 * the revision of the given version has been uninstalled or replaced
+	 */
+	private final static byte REMOVAL_PENDING = 4;
+
+	/*
+	 * the id assigned to the next bundle installed, written by the compaction
+	 * in place of the field bundle id: the revision records of the bundles
+	 * removed, which would otherwise keep it, are dropped
+	 */
+	private final static byte NEXT_BUNDLE_ID = 5;
+
+	/*
+	 * garbage records tolerated before compacting
+	 */
+	private final static int COMPACTION_SLACK = 64;
+
+	static class Entry {
+
+		String location;
+
+		String version;
+
+		long lastModified;
+
+		int startLevel;
+
+		int autostartSetting;
+
+		boolean removalPending;
+
+		/*
+		 * changed but not written yet
+		 */
+		boolean startLevelPending;
+
+		boolean autostartSettingPending;
+	}
+
+	private Framework framework;
+
+	private File file;
+
+	/*
+	 * force the records to disk before returning
+	 */
+	private boolean sync;
+
+	/*
+	 * bundle id -> Entry
+	 */
+	private Map entriesById;
+
+	/*
+	 * greater than the id of any bundle recorded
+	 */
+	private long nextBundleId;
+
+	private RandomAccessFile journalFile;
+
+	private long end;
+
+	private int records;
+
+	private Object journalLock;
+
+	/*
+	 * incremented by each compaction, positions of different epochs refer to
+	 * different files
+	 */
+	private long epoch;
+
+	private Object syncLock;
+
+	private long syncedPosition;
+
+	private long syncedEpoch;
+
+	/*
+	 * milliseconds, 0 writes the changes at once
+	 */
+	private long flushDelay;
+
+	/*
+	 * bundle id -> Entry with pending changes, in order of change
+	 */
+	private Map pendingById;
+
+	private Thread flusher;
+
+	private Thread shutdownHook;
+
+	StorageJournal(Framework framework, File file, boolean sync, long flushDelay) {
+		this.framework = framework;
+
+		this.file = file;
+
+		this.sync = sync;
+
+		this.flushDelay = flushDelay;
+
+		this.entriesById = new HashMap();
+
+		this.nextBundleId = 1L;
+
+		this.pendingById = new LinkedHashMap();
+
+		this.journalLock = new Object();
+
+		this.syncLock = new Object();
+	}
+
+	/*
+	 * Reads the journal, a new one is created if it does not exist.
+	 */
+	void open() throws IOException {
+		synchronized (journalLock) {
+			File temp = getTempFile();
+
+			if (!file.exists() && temp.exists()) {
+				/*
+				 * the snapshot is complete, it is renamed once forced to disk
+				 */
+				framework.log(LogService.LOG_WARNING, new StringBuilder("Restoring ").append(file).append(" from ").append(temp).toString());
+
+				if (!temp.renameTo(file)) {
+					throw new IOException(new StringBuilder("Cannot restore ").append(file).toString());
+				}
+			} else if (temp.exists()) {
+				/*
+				 * the journal has not been replaced, the snapshot may be partial
+				 */
+				temp.delete();
+			}
+
+			long position = 0L;
+
+			if (file.exists()) {
+				position = replay();
+
+				if (position < HEADER_SIZE) {
+					File unreadable = new File(file.getPath().concat(".unreadable"));
+
+					framework.log(LogService.LOG_ERROR, new StringBuilder("Cannot read ").append(file).append(", it is kept as ").append(unreadable).toString());
+
+					unreadable.delete();
+
+					file.renameTo(unreadable);
+				}
+			}
+
+			if (position < HEADER_SIZE) {
+				/*
+				 * missing or unreadable header
+				 */
+				file.getParentFile().mkdirs();
+
+				entriesById.clear();
+
+				records = 0;
+
+				writeSnapshot();
+			} else {
+				journalFile = new RandomAccessFile(file, "rw");
+
+				if (journalFile.length() > position) {
+					framework.log(LogService.LOG_WARNING, new StringBuilder("Truncating the incomplete records at the end of ").append(file).toString());
+
+					journalFile.setLength(position);
+				}
+
+				end = position;
+			}
+
+			if (flushDelay > 0L && shutdownHook == null) {
+				shutdownHook = new Thread(new Runnable() {
+					public void run() {
+						try {
+							flush();
+						} catch (IOException e) {
+							// exiting
+						}
+					}
+				}, new StringBuilder(getClass().getName()).append(" shutdown").toString());
+
+				Runtime.getRuntime().addShutdownHook(shutdownHook);
+			}
+		}
+	}
+
+	/*
+	 * Returns the position following the last complete record.
+	 */
+	private long replay() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+				framework.log(LogService.LOG_ERROR, new StringBuilder("Unknown format of ").append(file).toString());
+
+				return 0L;
+			}
+
+			long position = HEADER_SIZE;
+
+			CRC32 crc = new CRC32();
+
+			while (true) {
+				byte[] b;
+				try {
+					int length = in.readInt();
+					if (length <= 0 || length > MAX_RECORD_SIZE) {
+						break;
+					}
+
+					b = new byte[length];
+					in.readFully(b);
+
+					crc.reset();
+					crc.update(b);
+
+					if (in.readInt() != (int) crc.getValue()) {
+						break;
+					}
+				} catch (EOFException e) {
+					break;
+				}
+
+				apply(b);
+
+				records++;
+
+				position += 4 + b.length + 4;
+			}
+
+			return position;
+		} catch (EOFException e) {
+			return 0L;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void apply(byte[] b) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+
+		byte type = in.readByte();
+
+		Long bundleId = Long.valueOf(in.readLong());
+
+		Entry entry = (Entry) entriesById.get(bundleId);
+
+		switch (type) {
+		case REVISION:
+			entry = new Entry();
+			entry.location = in.readUTF();
+			entry.version = in.readUTF();
+			entry.lastModified = in.readLong();
+			entry.startLevel = in.readInt();
+			entry.autostartSetting = in.readInt();
+
+			entriesById.put(bundleId, entry);
+
+			nextBundleId = Math.max(nextBundleId, bundleId.longValue() + 1L);
+			break;
+		case START_LEVEL:
+			if (entry != null) {
+				entry.startLevel = in.readInt();
+			}
+			break;
+		case AUTOSTART_SETTING:
+			if (entry != null) {
+				entry.autostartSetting = in.readInt();
+			}
+			break;
+		case REMOVAL_PENDING:
+			/*
+			 * an older revision is replaced when the bundle is updated
+			 */
+			if (entry != null && entry.version.equals(in.readUTF())) {
+				entry.removalPending = true;
+			}
+			break;
+		case NEXT_BUNDLE_ID:
+			nextBundleId = Math.max(nextBundleId, bundleId.longValue());
+			break;
+		default:
+			throw new IOException(new StringBuilder("Unknown record type ").append(type).append(" in ").append(file).toString());
+		}
+	}
+
+	Entry get(long bundleId) {
+		synchronized (journalLock) {
+			return (Entry) entriesById.get(Long.valueOf(bundleId));
+		}
+	}
+
+	/*
+	 * The id is taken once the revision of the bundle has been added.
+	 */
+	long getNextBundleId() {
+		synchronized (journalLock) {
+			return nextBundleId;
+		}
+	}
+
+	/*
+	 * The bundle has been removed from the storage, the next compaction drops
+	 * its records.
+	 */
+	void remove(long bundleId) {
+		synchronized (journalLock) {
+			entriesById.remove(Long.valueOf(bundleId));
+
+			pendingById.remove(Long.valueOf(bundleId));
+		}
+	}
+
+	/*
+	 * Drops the entries of the bundles not in bundleIds, the next compaction
+	 * drops their records.
+	 */
+	void retain(Set bundleIds) {
+		synchronized (journalLock) {
+			entriesById.keySet().retainAll(bundleIds);
+
+			pendingById.keySet().retainAll(bundleIds);
+		}
+	}
+
+	void addRevision(long bundleId, String location, String version, long lastModified, int startLevel, int autostartSetting) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeByte(REVISION);
+		out.writeLong(bundleId);
+		out.writeUTF(location);
+		out.writeUTF(version);
+		out.writeLong(lastModified);
+		out.writeInt(startLevel);
+		out.writeInt(autostartSetting);
+
+		append(bos.toByteArray());
+	}
+
+	void setStartLevel(long bundleId, int startLevel) throws IOException {
+		if (flushDelay > 0L) {
+			synchronized (journalLock) {
+				Entry entry = (Entry) entriesById.get(Long.valueOf(bundleId));
+				if (entry != null && journalFile != null) {
+					entry.startLevel = startLevel;
+
+					entry.startLevelPending = true;
+
+					addPending(bundleId, entry);
+
+					return;
+				}
+			}
+		}
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeByte(START_LEVEL);
+		out.writeLong(bundleId);
+		out.writeInt(startLevel);
+
+		append(bos.toByteArray());
+	}
+
+	void setAutostartSetting(long bundleId, int autostartSetting) throws IOException {
+		if (flushDelay > 0L) {
+			synchronized (journalLock) {
+				Entry entry = (Entry) entriesById.get(Long.valueOf(bundleId));
+				if (entry != null && journalFile != null) {
+					entry.autostartSetting = autostartSetting;
+
+					entry.autostartSettingPending = true;
+
+					addPending(bundleId, entry);
+
+					return;
+				}
+			}
+		}
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeByte(AUTOSTART_SETTING);
+		out.writeLong(bundleId);
+		out.writeInt(autostartSetting);
+
+		append(bos.toByteArray());
+	}
+
+	void setRemovalPending(long bundleId, String version) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeByte(REMOVAL_PENDING);
+		out.writeLong(bundleId);
+		out.writeUTF(version);
+
+		append(bos.toByteArray());
+	}
+
+	private static byte[] frame(byte[] b) {
+		CRC32 crc = new CRC32();
+		crc.update(b);
+
+		ByteBuffer buffer = ByteBuffer.allocate(4 + b.length + 4);
+		buffer.putInt(b.length);
+		buffer.put(b);
+		buffer.putInt((int) crc.getValue());
+
+		return buffer.array();
+	}
+
+	/*
+	 * Must be invoked holding the journal lock.
+	 */
+	private void addPending(long bundleId, Entry entry) {
+		if (pendingById.isEmpty()) {
+			journalLock.notifyAll();
+		}
+
+		pendingById.put(Long.valueOf(bundleId), entry);
+
+		if (flusher == null) {
+			flusher = new Thread(new Runnable() {
+				public void run() {
+					flushPending();
+				}
+			}, new StringBuilder(getClass().getName()).append(" flush").toString());
+
+			flusher.setDaemon(true);
+
+			flusher.start();
+		}
+	}
+
+	/*
+	 * Run by the flusher thread until the journal is closed.
+	 */
+	private void flushPending() {
+		while (true) {
+			synchronized (journalLock) {
+				try {
+					while (journalFile != null && pendingById.isEmpty()) {
+						journalLock.wait();
+					}
+
+					/*
+					 * the changes made meanwhile are written together
+					 */
+					long deadline = System.currentTimeMillis() + flushDelay;
+
+					long remaining;
+					while (journalFile != null && (remaining = deadline - System.currentTimeMillis()) > 0L) {
+						journalLock.wait(remaining);
+					}
+				} catch (InterruptedException e) {
+					flusher = null;
+
+					return;
+				}
+
+				if (journalFile == null) {
+					flusher = null;
+
+					return;
+				}
+			}
+
+			try {
+				flush();
+			} catch (IOException e) {
+				framework.log(LogService.LOG_ERROR, new StringBuilder("Cannot write to ").append(file).toString(), e);
+			}
+		}
+	}
+
+	/*
+	 * Writes the pending changes.
+	 */
+	void flush() throws IOException {
+		long position;
+
+		long epoch;
+
+		synchronized (journalLock) {
+			if (journalFile == null || pendingById.isEmpty()) {
+				return;
+			}
+
+			writePending();
+
+			if (records > 2 * entriesById.size() + COMPACTION_SLACK) {
+				compact();
+
+				return;
+			}
+
+			position = end;
+
+			epoch = this.epoch;
+		}
+
+		if (sync) {
+			sync(position, epoch);
+		}
+	}
+
+	/*
+	 * One write for all the pending changes. Must be invoked holding the
+	 * journal lock.
+	 */
+	private void writePending() throws IOException {
+		if (pendingById.isEmpty()) {
+			return;
+		}
+
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+
+		int pendingRecords = 0;
+
+		Iterator it = pendingById.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry mapEntry = (Map.Entry) it.next();
+
+			long bundleId = ((Long) mapEntry.getKey()).longValue();
+
+			Entry entry = (Entry) mapEntry.getValue();
+
+			if (entry.startLevelPending) {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bos);
+				out.writeByte(START_LEVEL);
+				out.writeLong(bundleId);
+				out.writeInt(entry.startLevel);
+
+				frames.write(frame(bos.toByteArray()));
+
+				pendingRecords++;
+			}
+
+			if (entry.autostartSettingPending) {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bos);
+				out.writeByte(AUTOSTART_SETTING);
+				out.writeLong(bundleId);
+				out.writeInt(entry.autostartSetting);
+
+				frames.write(frame(bos.toByteArray()));
+
+				pendingRecords++;
+			}
+		}
+
+		write(frames.toByteArray());
+
+		records += pendingRecords;
+
+		clearPending();
+	}
+
+	private void clearPending() {
+		Iterator it = pendingById.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = (Entry) it.next();
+
+			entry.startLevelPending = false;
+
+			entry.autostartSettingPending = false;
+		}
+
+		pendingById.clear();
+	}
+
+	private void append(byte[] b) throws IOException {
+		long position;
+
+		long epoch;
+
+		synchronized (journalLock) {
+			if (journalFile == null) {
+				throw new IOException(new StringBuilder(file.toString()).append(" is closed.").toString());
+			}
+
+			/*
+			 * the changes made before come first
+			 */
+			writePending();
+
+			write(frame(b));
+
+			apply(b);
+
+			records++;
+
+			if (records > 2 * entriesById.size() + COMPACTION_SLACK) {
+				/*
+				 * the snapshot is forced to disk
+				 */
+				compact();
+
+				return;
+			}
+
+			position = end;
+
+			epoch = this.epoch;
+		}
+
+		if (sync) {
+			sync(position, epoch);
+		}
+	}
+
+	/*
+	 * Must be invoked holding the journal lock.
+	 */
+	private void write(byte[] b) throws IOException {
+		journalFile.seek(end);
+
+		journalFile.write(b);
+
+		end += b.length;
+	}
+
+	/*
+	 * Group commit: a thread forcing the journal makes durable the records
+	 * appended by the other threads in the meantime, which then do not force
+	 * it again.
+	 */
+	private void sync(long position, long epoch) throws IOException {
+		synchronized (syncLock) {
+			if (syncedEpoch == epoch && syncedPosition >= position) {
+				return;
+			}
+
+			RandomAccessFile journalFile;
+
+			long target;
+
+			synchronized (journalLock) {
+				/*
+				 * a compaction has forced the snapshot, which includes the
+				 * record, and a closed journal has been forced on close
+				 */
+				if (this.epoch != epoch || this.journalFile == null) {
+					return;
+				}
+
+				journalFile = this.journalFile;
+
+				target = end;
+			}
+
+			try {
+				journalFile.getFD().sync();
+			} catch (IOException e) {
+				synchronized (journalLock) {
+					/*
+					 * compacted or closed in the meantime, see above
+					 */
+					if (this.epoch != epoch || this.journalFile == null) {
+						return;
+					}
+				}
+
+				throw e;
+			}
+
+			syncedPosition = target;
+
+			syncedEpoch = epoch;
+		}
+	}
+
+	/*
+	 * Rewrites the journal with one record for each bundle, if it contains
+	 * older records.
+	 */
+	void compact() throws IOException {
+		synchronized (journalLock) {
+			/*
+			 * the next bundle id
+			 */
+			int liveRecords = 1;
+
+			Iterator it = entriesById.values().iterator();
+			while (it.hasNext()) {
+				liveRecords += ((Entry) it.next()).removalPending ? 2 : 1;
+			}
+
+			if (records > liveRecords) {
+				writeSnapshot();
+			}
+		}
+	}
+
+	/*
+	 * The snapshot is written to a temporary file first, so that a crash never
+	 * leaves a partial journal behind.
+	 */
+	private void writeSnapshot() throws IOException {
+		File temp = getTempFile();
+
+		FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream record = new DataOutputStream(bos);
+			record.writeByte(NEXT_BUNDLE_ID);
+			record.writeLong(nextBundleId);
+
+			out.write(frame(bos.toByteArray()));
+
+			int snapshotRecords = 1;
+
+			Iterator it = entriesById.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry mapEntry = (Map.Entry) it.next();
+
+				long bundleId = ((Long) mapEntry.getKey()).longValue();
+
+				Entry entry = (Entry) mapEntry.getValue();
+
+				bos = new ByteArrayOutputStream();
+				record = new DataOutputStream(bos);
+				record.writeByte(REVISION);
+				record.writeLong(bundleId);
+				record.writeUTF(entry.location);
+				record.writeUTF(entry.version);
+				record.writeLong(entry.lastModified);
+				record.writeInt(entry.startLevel);
+				record.writeInt(entry.autostartSetting);
+
+				out.write(frame(bos.toByteArray()));
+
+				snapshotRecords++;
+
+				if (entry.removalPending) {
+					bos = new ByteArrayOutputStream();
+					record = new DataOutputStream(bos);
+					record.writeByte(REMOVAL_PENDING);
+					record.writeLong(bundleId);
+					record.writeUTF(entry.version);
+
+					out.write(frame(bos.toByteArray()));
+
+					snapshotRecords++;
+				}
+			}
+
+			out.flush();
+
+			fos.getFD().sync();
+
+			records = snapshotRecords;
+
+			/*
+			 * the snapshot includes the pending changes
+			 */
+			clearPending();
+		} finally {
+			fos.close();
+		}
+
+		if (journalFile != null) {
+			journalFile.close();
+
+			journalFile = null;
+		}
+
+		/*
+		 * the journal is replaced in one step, it is deleted first only where
+		 * an existing file cannot be replaced, open restores it from the
+		 * snapshot if a crash occurs in between
+		 */
+		if (!temp.renameTo(file)) {
+			file.delete();
+
+			if (!temp.renameTo(file)) {
+				/*
+				 * the snapshot is kept, the journal is restored from it
+				 */
+				throw new IOException(new StringBuilder("Cannot store ").append(file).toString());
+			}
+		}
+
+		journalFile = new RandomAccessFile(file, "rw");
+
+		end = journalFile.length();
+
+		epoch++;
+	}
+
+	private File getTempFile() {
+		return new File(file.getPath().concat(".tmp"));
+	}
+
+	void close() {
+		synchronized (journalLock) {
+			if (journalFile == null) {
+				return;
+			}
+
+			try {
+				writePending();
+			} catch (IOException e) {
+				framework.log(LogService.LOG_ERROR, new StringBuilder("Cannot write to ").append(file).toString(), e);
+			}
+
+			try {
+				if (sync) {
+					journalFile.getFD().sync();
+				}
+
+				journalFile.close();
+			} catch (IOException e) {
+				framework.log(LogService.LOG_WARNING, new StringBuilder("Cannot close ").append(file).toString(), e);
+			}
+
+			journalFile = null;
+
+			/*
+			 * the flusher thread terminates
+			 */
+			journalLock.notifyAll();
+
+			if (shutdownHook != null) {
+				try {
+					Runtime.getRuntime().removeShutdownHook(shutdownHook);
+				} catch (IllegalStateException e) {
+					// closed by a shutdown hook
+				}
+
+				shutdownHook = null;
+			}
+		}
+	}
+}
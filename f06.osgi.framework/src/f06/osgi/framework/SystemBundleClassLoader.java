@@ -15,8 +15,24 @@
  */
 package f06.osgi.framework;
 
+import java.lang.reflect.Method;
+
 class SystemBundleClassLoader extends BundleClassLoader {
 	
+	static {
+		/*
+		 * invoked from here, so that this class is the one registered
+		 */
+		Method method = getRegisterAsParallelCapable();
+		if (method != null) {
+			try {
+				method.invoke(null, new Object[0]);
+			} catch (Exception e) {
+				// loaders are serialized by the VM
+			}
+		}
+	}
+	
 	public SystemBundleClassLoader(ClassLoader parent, Framework framework, BundleURLClassPath[] classPaths) {
 		super(parent, framework, framework, classPaths);
 	}
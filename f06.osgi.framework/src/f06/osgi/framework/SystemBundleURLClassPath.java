@@ -23,6 +23,8 @@ import java.util.Enumeration;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.Version;
 
+import f06.util.IOUtil;
+
 /*
  * BundleContent is defined for each bundle (host and fragment bundle) and permits
  * to access to jar file content
@@ -39,11 +41,11 @@ class SystemBundleURLClassPath implements BundleURLClassPath {
 		this.version = framework.getVersion();
 	}
 
-	public synchronized URL getEntry(String name) {
+	public URL getEntry(String name) {
 		return framework.getClass().getClassLoader().getResource(name);
 	}
 	
-	public synchronized Enumeration findEntries(String path, final String filePattern, boolean recurse) {
+	public Enumeration findEntries(String path, final String filePattern, boolean recurse) {
 		if (path == null)
 			throw new NullPointerException();
 
@@ -86,7 +88,7 @@ class SystemBundleURLClassPath implements BundleURLClassPath {
 		return e;
 	}
 	
-	public synchronized Enumeration getEntryPaths(String path) {
+	public Enumeration getEntryPaths(String path) {
 		return null;
 	}
 	
@@ -94,6 +96,12 @@ class SystemBundleURLClassPath implements BundleURLClassPath {
 		return framework.getClass().getClassLoader().getResourceAsStream(name);
 	}
 	
+	public byte[] getEntryAsBytes(String name) throws IOException {
+		InputStream is = getEntryAsStream(-1, name);
+		
+		return is != null ? IOUtil.getBytes(is) : null;
+	}
+	
 	public Bundle getBundle() {
 		return framework;
 	}
@@ -101,4 +109,10 @@ class SystemBundleURLClassPath implements BundleURLClassPath {
 	public Version getVersion() {
 		return this.version;
 	}
+	
+	/*
+	 * read through the class loader of the framework
+	 */
+	public void close() {
+	}
 }
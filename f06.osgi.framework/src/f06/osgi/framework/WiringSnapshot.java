@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+
+/*
+ * The wiring of the resolved bundles, as it was when the framework was last
+ * shut down: the exported packages with their importers, the packages and the
+ * bundles each host is wired to, the required bundles and the resolved bundles
+ * (fragments included). Bundles are referred to by id, exported packages by
+ * their index in the exports.
+ *
+ * The snapshot is valid as long as the fingerprint matches, i.e. neither the
+ * installed bundle revisions nor the properties the resolution depends on have
+ * changed since it was taken.
+ */
+class WiringSnapshot {
+
+	private final static int MAGIC = 0xF06C3A1F;
+
+	private final static int FORMAT = 1;
+
+	/*
+	 * properties the exports of the system bundle and the resolution depend on
+	 */
+	private final static String[] FINGERPRINT_PROPERTIES = {
+		Constants.FRAMEWORK_SYSTEMPACKAGES,
+		Constants.FRAMEWORK_SYSTEMPACKAGES_EXTRA,
+		Constants.FRAMEWORK_BOOTDELEGATION,
+		Constants.FRAMEWORK_EXECUTIONENVIRONMENT
+	};
+
+	static class Export {
+
+		long exporterId;
+
+		String name;
+
+		String specificationVersion;
+
+		String version;
+
+		String company;
+
+		String[] uses;
+
+		String[] mandatory;
+
+		String[] include;
+
+		String[] exclude;
+
+		long[] importerIds;
+	}
+
+	static class Wires {
+
+		long hostId;
+
+		/*
+		 * indexes of the exports the host is wired to
+		 */
+		int[] exports;
+
+		/*
+		 * in the order they are searched
+		 */
+		long[] requiredBundleIds;
+	}
+
+	static class Requirement {
+
+		String symbolicName;
+
+		long bundleId;
+
+		long[] requiringIds;
+	}
+
+	String fingerprint;
+
+	long[] resolvedIds;
+
+	Export[] exports;
+
+	Wires[] wires;
+
+	Requirement[] requirements;
+
+	/*
+	 * Digest of the properties and of the id, location and last modification
+	 * time of each bundle but the system bundle; an update changes the last
+	 * modification time of the bundle.
+	 */
+	static String fingerprint(Framework framework, Bundle[] bundles) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(BundleFileWriter.DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(FORMAT).append('\n');
+
+		for (int i = 0; i < FINGERPRINT_PROPERTIES.length; i++) {
+			sb.append(FINGERPRINT_PROPERTIES[i]).append('=').append(framework.getProperty(FINGERPRINT_PROPERTIES[i])).append('\n');
+		}
+
+		for (int i = 0; i < bundles.length; i++) {
+			long bundleId = bundles[i].getBundleId();
+			if (bundleId == 0L) {
+				continue;
+			}
+
+			sb.append(bundleId).append(' ').
+				append(framework.getLastModified(bundles[i])).append(' ').
+				append(framework.getLocation(bundles[i])).append('\n');
+		}
+
+		try {
+			return BlobStore.toHex(md.digest(sb.toString().getBytes("UTF-8")));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static WiringSnapshot read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+			throw new IOException("Invalid wiring snapshot");
+		}
+
+		WiringSnapshot snapshot = new WiringSnapshot();
+
+		snapshot.fingerprint = in.readUTF();
+
+		snapshot.resolvedIds = readLongs(in);
+
+		snapshot.exports = new Export[in.readInt()];
+		for (int i = 0; i < snapshot.exports.length; i++) {
+			Export export = new Export();
+			export.exporterId = in.readLong();
+			export.name = in.readUTF();
+			export.specificationVersion = readString(in);
+			export.version = in.readUTF();
+			export.company = readString(in);
+			export.uses = readStrings(in);
+			export.mandatory = readStrings(in);
+			export.include = readStrings(in);
+			export.exclude = readStrings(in);
+			export.importerIds = readLongs(in);
+
+			snapshot.exports[i] = export;
+		}
+
+		snapshot.wires = new Wires[in.readInt()];
+		for (int i = 0; i < snapshot.wires.length; i++) {
+			Wires wires = new Wires();
+			wires.hostId = in.readLong();
+
+			wires.exports = new int[in.readInt()];
+			for (int j = 0; j < wires.exports.length; j++) {
+				int index = in.readInt();
+				if (index < 0 || index >= snapshot.exports.length) {
+					throw new IOException("Invalid wiring snapshot");
+				}
+
+				wires.exports[j] = index;
+			}
+
+			wires.requiredBundleIds = readLongs(in);
+
+			snapshot.wires[i] = wires;
+		}
+
+		snapshot.requirements = new Requirement[in.readInt()];
+		for (int i = 0; i < snapshot.requirements.length; i++) {
+			Requirement requirement = new Requirement();
+			requirement.symbolicName = in.readUTF();
+			requirement.bundleId = in.readLong();
+			requirement.requiringIds = readLongs(in);
+
+			snapshot.requirements[i] = requirement;
+		}
+
+		return snapshot;
+	}
+
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT);
+
+		out.writeUTF(fingerprint);
+
+		writeLongs(out, resolvedIds);
+
+		out.writeInt(exports.length);
+		for (int i = 0; i < exports.length; i++) {
+			Export export = exports[i];
+			out.writeLong(export.exporterId);
+			out.writeUTF(export.name);
+			writeString(out, export.specificationVersion);
+			out.writeUTF(export.version);
+			writeString(out, export.company);
+			writeStrings(out, export.uses);
+			writeStrings(out, export.mandatory);
+			writeStrings(out, export.include);
+			writeStrings(out, export.exclude);
+			writeLongs(out, export.importerIds);
+		}
+
+		out.writeInt(wires.length);
+		for (int i = 0; i < wires.length; i++) {
+			out.writeLong(wires[i].hostId);
+
+			out.writeInt(wires[i].exports.length);
+			for (int j = 0; j < wires[i].exports.length; j++) {
+				out.writeInt(wires[i].exports[j]);
+			}
+
+			writeLongs(out, wires[i].requiredBundleIds);
+		}
+
+		out.writeInt(requirements.length);
+		for (int i = 0; i < requirements.length; i++) {
+			out.writeUTF(requirements[i].symbolicName);
+			out.writeLong(requirements[i].bundleId);
+			writeLongs(out, requirements[i].requiringIds);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	/*
+	 * null is written as a negative length
+	 */
+	private static String[] readStrings(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+
+		String[] strings = new String[length];
+		for (int i = 0; i < length; i++) {
+			strings[i] = in.readUTF();
+		}
+
+		return strings;
+	}
+
+	private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+		if (strings == null) {
+			out.writeInt(-1);
+
+			return;
+		}
+
+		out.writeInt(strings.length);
+		for (int i = 0; i < strings.length; i++) {
+			out.writeUTF(strings[i]);
+		}
+	}
+
+	private static long[] readLongs(DataInputStream in) throws IOException {
+		long[] longs = new long[in.readInt()];
+		for (int i = 0; i < longs.length; i++) {
+			longs[i] = in.readLong();
+		}
+
+		return longs;
+	}
+
+	private static void writeLongs(DataOutputStream out, long[] longs) throws IOException {
+		out.writeInt(longs.length);
+		for (int i = 0; i < longs.length; i++) {
+			out.writeLong(longs[i]);
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import f06.util.IOUtil;
+
+/*
+ * A jar file of the bundle cache, opened through the JarFilePool each time it
+ * is read.
+ */
+class ZipJarContent implements JarContent {
+
+	/*
+	 * Releases the jar file once the entry has been read to the end or the
+	 * stream is closed, whichever comes first.
+	 */
+	private class PooledInputStream extends FilterInputStream {
+
+		private final JarFilePool.PooledJarFile pooledJarFile;
+
+		private boolean released;
+
+		PooledInputStream(InputStream in, JarFilePool.PooledJarFile pooledJarFile) {
+			super(in);
+
+			this.pooledJarFile = pooledJarFile;
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b == -1) {
+				release();
+			}
+
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n == -1) {
+				release();
+			}
+
+			return n;
+		}
+
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				release();
+			}
+		}
+
+		private synchronized void release() {
+			if (!released) {
+				released = true;
+
+				pool.release(pooledJarFile);
+			}
+		}
+	}
+
+	private final File file;
+
+	private final JarFilePool pool;
+
+	ZipJarContent(File file, JarFilePool pool) {
+		this.file = file;
+
+		this.pool = pool;
+	}
+
+	public String getName() {
+		return file.getPath();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public File getIndexFile() {
+		return getIndexFile(file);
+	}
+
+	static File getIndexFile(File file) {
+		return new File(file.getPath().concat(".index"));
+	}
+
+	public String[] getEntryNames() throws IOException {
+		JarFilePool.PooledJarFile pooledJarFile = pool.acquire(file);
+		try {
+			JarFile jarFile = pooledJarFile.getJarFile();
+
+			List names = new ArrayList(jarFile.size());
+
+			Enumeration e = jarFile.entries();
+			while (e.hasMoreElements()) {
+				names.add(((ZipEntry) e.nextElement()).getName());
+			}
+
+			return (String[]) names.toArray(new String[names.size()]);
+		} finally {
+			pool.release(pooledJarFile);
+		}
+	}
+
+	public boolean containsEntry(String name) throws IOException {
+		JarFilePool.PooledJarFile pooledJarFile = pool.acquire(file);
+		try {
+			return pooledJarFile.getJarFile().getEntry(name) != null;
+		} finally {
+			pool.release(pooledJarFile);
+		}
+	}
+
+	public InputStream getInputStream(String name) throws IOException {
+		JarFilePool.PooledJarFile pooledJarFile = pool.acquire(file);
+		try {
+			JarFile jarFile = pooledJarFile.getJarFile();
+
+			ZipEntry zipEntry = jarFile.getEntry(name);
+			if (zipEntry != null) {
+				InputStream is = new PooledInputStream(jarFile.getInputStream(zipEntry), pooledJarFile);
+
+				pooledJarFile = null;
+
+				return is;
+			}
+
+			return null;
+		} finally {
+			/*
+			 * otherwise released by the stream
+			 */
+			if (pooledJarFile != null) {
+				pool.release(pooledJarFile);
+			}
+		}
+	}
+
+	public byte[] getBytes(String name) throws IOException {
+		JarFilePool.PooledJarFile pooledJarFile = pool.acquire(file);
+		try {
+			JarFile jarFile = pooledJarFile.getJarFile();
+
+			ZipEntry zipEntry = jarFile.getEntry(name);
+			if (zipEntry == null) {
+				return null;
+			}
+
+			InputStream is = jarFile.getInputStream(zipEntry);
+
+			long size = zipEntry.getSize();
+
+			return size != -1L ? IOUtil.getBytes(is, (int) size) : IOUtil.getBytes(is);
+		} finally {
+			pool.release(pooledJarFile);
+		}
+	}
+
+	/*
+	 * Another revision may share the jar file through the blob store, in that
+	 * case the pool opens it again.
+	 */
+	public void close() throws IOException {
+		pool.close(file);
+	}
+}
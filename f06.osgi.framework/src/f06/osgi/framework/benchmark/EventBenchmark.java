@@ -0,0 +1,507 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.osgi.framework.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Properties;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.launch.Framework;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+import f06.util.IOUtil;
+
+/*
+ * Boots the framework and measures the end to end cost of event delivery, from the
+ * publishing call to the listener, for the synchronous and asynchronous paths:
+ *
+ *   eventadmin.send  EventAdmin.sendEvent
+ *   eventadmin.post  EventAdmin.postEvent
+ *   service          ServiceListener(s) notified by service (un)registrations
+ *   bundle           SynchronousBundleListener(s) notified by start / stop of a bundle
+ *
+ * Parameters are read from system properties:
+ *
+ *   benchmark.listeners  listeners (or handlers) registered for each path (default 10)
+ *   benchmark.filters    how many of them are registered with a filter (default 5)
+ *   benchmark.topics     distinct EventAdmin topics the handlers are spread over (default 4)
+ *   benchmark.events     events published for each path (default 20000)
+ *   benchmark.warmup     events published before measuring (default 5000)
+ *   benchmark.timeout    seconds the deliveries of each path are waited for (default 60)
+ *
+ * The framework configuration is given as first argument (default config/framework.properties),
+ * the framework storage is a temporary directory deleted at the end of the run.
+ */
+public class EventBenchmark {
+
+	private static final String TOPIC_PREFIX = "f06/benchmark/";
+
+	private static final String TIMESTAMP = "benchmark.timestamp";
+
+	private static final String SEQUENCE = "benchmark.sequence";
+
+	/*
+	 * latencies in nanoseconds of the measured deliveries
+	 */
+	static class Recorder {
+
+		private long[] latencies;
+
+		private int count;
+
+		private long delivered;
+
+		private long expected;
+
+		Recorder(int capacity) {
+			latencies = new long[capacity];
+		}
+
+		synchronized void record(long timestamp) {
+			long latency = System.nanoTime() - timestamp;
+
+			if (count < latencies.length) {
+				latencies[count++] = latency;
+			}
+
+			delivered++;
+
+			notifyAll();
+		}
+
+		/*
+		 * Returns false if less deliveries than expected have been recorded
+		 * when the timeout expires.
+		 */
+		synchronized boolean awaitDelivered(long expected, long timeout) throws InterruptedException {
+			this.expected = expected;
+
+			long deadline = System.currentTimeMillis() + timeout;
+
+			while (delivered < expected) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0L) {
+					return false;
+				}
+
+				wait(remaining);
+			}
+
+			return true;
+		}
+
+		synchronized void reset() {
+			count = 0;
+
+			delivered = 0L;
+
+			expected = 0L;
+		}
+
+		synchronized long getDelivered() {
+			return delivered;
+		}
+
+		synchronized long getExpected() {
+			return expected;
+		}
+
+		synchronized long percentile(double p) {
+			if (count == 0) {
+				return 0L;
+			}
+
+			long[] sorted = new long[count];
+			System.arraycopy(latencies, 0, sorted, 0, count);
+			Arrays.sort(sorted);
+
+			int i = (int) Math.ceil(p * count) - 1;
+
+			return sorted[Math.max(0, Math.min(i, count - 1))];
+		}
+	}
+
+	private BundleContext context;
+
+	private int listeners;
+
+	private int filters;
+
+	private int topics;
+
+	private int events;
+
+	private int warmup;
+
+	/*
+	 * milliseconds
+	 */
+	private long timeout;
+
+	EventBenchmark(BundleContext context) {
+		this.context = context;
+
+		listeners = Integer.getInteger("benchmark.listeners", 10).intValue();
+		filters = Math.min(listeners, Integer.getInteger("benchmark.filters", 5).intValue());
+		topics = Math.max(1, Integer.getInteger("benchmark.topics", 4).intValue());
+		events = Integer.getInteger("benchmark.events", 20000).intValue();
+		warmup = Integer.getInteger("benchmark.warmup", 5000).intValue();
+		timeout = Long.getLong("benchmark.timeout", 60L).longValue() * 1000L;
+	}
+
+	void run() throws Exception {
+		System.out.println(new StringBuilder("listeners=").append(listeners)
+			.append(" filters=").append(filters)
+			.append(" topics=").append(topics)
+			.append(" events=").append(events)
+			.append(" warmup=").append(warmup)
+			.append(" timeout=").append(timeout / 1000L).append("s").toString());
+		System.out.println();
+		System.out.println("path             mode   events/s    deliveries/s  p50(us)   p99(us)   p999(us)");
+
+		runEventAdmin(true);
+		runEventAdmin(false);
+		runServiceEvents();
+		runBundleEvents();
+	}
+
+	private void runEventAdmin(final boolean sync) throws Exception {
+		ServiceReference reference = context.getServiceReference(EventAdmin.class.getName());
+		EventAdmin eventAdmin = (EventAdmin) context.getService(reference);
+
+		final Recorder recorder = new Recorder(events * listeners);
+
+		/*
+		 * handlers are spread over the topics, the filtered ones use a filter which
+		 * always matches so that every delivery is counted
+		 */
+		int[] handlersByTopic = new int[topics];
+
+		ServiceRegistration[] registrations = new ServiceRegistration[listeners];
+		for (int i = 0; i < listeners; i++) {
+			Dictionary d = new Hashtable();
+			d.put(EventConstants.EVENT_TOPIC, new StringBuilder(TOPIC_PREFIX).append(i % topics).toString());
+			if (i < filters) {
+				d.put(EventConstants.EVENT_FILTER, new StringBuilder("(").append(SEQUENCE).append(">=0)").toString());
+			}
+
+			handlersByTopic[i % topics]++;
+
+			registrations[i] = context.registerService(EventHandler.class.getName(), new EventHandler() {
+				public void handleEvent(Event event) {
+					recorder.record(((Long) event.getProperty(TIMESTAMP)).longValue());
+				}
+			}, d);
+		}
+
+		publish(eventAdmin, sync, warmup, recorder, handlersByTopic);
+
+		recorder.reset();
+
+		long start = System.nanoTime();
+
+		publish(eventAdmin, sync, events, recorder, handlersByTopic);
+
+		long elapsed = System.nanoTime() - start;
+
+		report(sync ? "eventadmin.send" : "eventadmin.post", sync, elapsed, recorder);
+
+		for (int i = 0; i < registrations.length; i++) {
+			registrations[i].unregister();
+		}
+
+		context.ungetService(reference);
+	}
+
+	private void publish(EventAdmin eventAdmin, boolean sync, int n, Recorder recorder, int[] handlersByTopic) throws InterruptedException {
+		long expected = 0L;
+
+		for (int i = 0; i < n; i++) {
+			int topic = i % topics;
+
+			Dictionary d = new Hashtable();
+			d.put(SEQUENCE, Integer.valueOf(i));
+			d.put(TIMESTAMP, Long.valueOf(System.nanoTime()));
+
+			Event event = new Event(new StringBuilder(TOPIC_PREFIX).append(topic).toString(), d);
+			if (sync) {
+				eventAdmin.sendEvent(event);
+			} else {
+				eventAdmin.postEvent(event);
+			}
+
+			expected += handlersByTopic[topic];
+		}
+
+		recorder.awaitDelivered(expected, timeout);
+	}
+
+	private void runServiceEvents() throws Exception {
+		final Recorder recorder = new Recorder(events * listeners);
+
+		ServiceListener[] serviceListeners = new ServiceListener[listeners];
+		for (int i = 0; i < listeners; i++) {
+			serviceListeners[i] = new ServiceListener() {
+				public void serviceChanged(ServiceEvent event) {
+					/*
+					 * listeners registrations are notified too
+					 */
+					Long timestamp = (Long) event.getServiceReference().getProperty(TIMESTAMP);
+					if (event.getType() == ServiceEvent.REGISTERED && timestamp != null) {
+						recorder.record(timestamp.longValue());
+					}
+				}
+			};
+
+			if (i < filters) {
+				context.addServiceListener(serviceListeners[i], new StringBuilder("(")
+					.append(Constants.OBJECTCLASS).append("=")
+					.append(Runnable.class.getName()).append(")").toString());
+			} else {
+				context.addServiceListener(serviceListeners[i]);
+			}
+		}
+
+		register(warmup, recorder);
+
+		recorder.reset();
+
+		long start = System.nanoTime();
+
+		register(events, recorder);
+
+		long elapsed = System.nanoTime() - start;
+
+		report("service", false, elapsed, recorder);
+
+		for (int i = 0; i < listeners; i++) {
+			context.removeServiceListener(serviceListeners[i]);
+		}
+	}
+
+	private void register(int n, Recorder recorder) throws InterruptedException {
+		Runnable service = new Runnable() {
+			public void run() {
+			}
+		};
+
+		for (int i = 0; i < n; i++) {
+			Dictionary d = new Hashtable();
+			d.put(TIMESTAMP, Long.valueOf(System.nanoTime()));
+
+			context.registerService(Runnable.class.getName(), service, d).unregister();
+		}
+
+		recorder.awaitDelivered((long) n * listeners, timeout);
+	}
+
+	private void runBundleEvents() throws Exception {
+		final Recorder recorder = new Recorder(events * listeners);
+
+		/*
+		 * publishing time of the events sent by the running start / stop call
+		 */
+		final long[] timestamp = new long[1];
+
+		SynchronousBundleListener[] bundleListeners = new SynchronousBundleListener[listeners];
+		for (int i = 0; i < listeners; i++) {
+			bundleListeners[i] = new SynchronousBundleListener() {
+				public void bundleChanged(BundleEvent event) {
+					if (event.getType() == BundleEvent.STARTED || event.getType() == BundleEvent.STOPPED) {
+						recorder.record(timestamp[0]);
+					}
+				}
+			};
+
+			context.addBundleListener(bundleListeners[i]);
+		}
+
+		Bundle bundle = context.installBundle("benchmark:bundle", new ByteArrayInputStream(createBundle()));
+
+		cycle(bundle, warmup, timestamp);
+
+		recorder.reset();
+
+		long start = System.nanoTime();
+
+		cycle(bundle, events, timestamp);
+
+		long elapsed = System.nanoTime() - start;
+
+		recorder.awaitDelivered((long) events * listeners, timeout);
+
+		report("bundle", true, elapsed, recorder);
+
+		for (int i = 0; i < listeners; i++) {
+			context.removeBundleListener(bundleListeners[i]);
+		}
+
+		bundle.uninstall();
+	}
+
+	/*
+	 * every start and every stop counts as one event
+	 */
+	private void cycle(Bundle bundle, int n, long[] timestamp) throws Exception {
+		for (int i = 0; i < n; i++) {
+			timestamp[0] = System.nanoTime();
+
+			if (i % 2 == 0) {
+				bundle.start(Bundle.START_TRANSIENT);
+			} else {
+				bundle.stop(Bundle.STOP_TRANSIENT);
+			}
+		}
+
+		if (bundle.getState() == Bundle.ACTIVE) {
+			bundle.stop(Bundle.STOP_TRANSIENT);
+		}
+	}
+
+	private byte[] createBundle() throws IOException {
+		Manifest manifest = new Manifest();
+
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attributes.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+		attributes.putValue(Constants.BUNDLE_SYMBOLICNAME, "f06.benchmark");
+		attributes.putValue(Constants.BUNDLE_VERSION, "1.0.0");
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+		JarOutputStream jos = new JarOutputStream(baos, manifest);
+		jos.close();
+
+		return baos.toByteArray();
+	}
+
+	private void report(String path, boolean sync, long elapsed, Recorder recorder) {
+		double seconds = elapsed / 1000000000D;
+
+		System.out.println(new StringBuilder()
+			.append(pad(path, 17))
+			.append(pad(sync ? "sync" : "async", 7))
+			.append(pad(String.valueOf(Math.round(events / seconds)), 12))
+			.append(pad(String.valueOf(Math.round(recorder.getDelivered() / seconds)), 14))
+			.append(pad(micros(recorder.percentile(0.50D)), 10))
+			.append(pad(micros(recorder.percentile(0.99D)), 10))
+			.append(micros(recorder.percentile(0.999D))).toString());
+
+		/*
+		 * the percentiles only account for the deliveries recorded
+		 */
+		long missing = recorder.getExpected() - recorder.getDelivered();
+		if (missing > 0L) {
+			System.out.println(new StringBuilder()
+				.append(pad("", 17))
+				.append(missing).append(" of ").append(recorder.getExpected())
+				.append(" deliveries missing after ").append(timeout / 1000L).append("s").toString());
+		}
+	}
+
+	private static String micros(long nanos) {
+		return String.valueOf(Math.round(nanos / 100D) / 10D);
+	}
+
+	private static String pad(String s, int width) {
+		StringBuilder sb = new StringBuilder(s);
+		while (sb.length() < width) {
+			sb.append(' ');
+		}
+
+		return sb.toString();
+	}
+
+	private static Properties loadConfiguration(String c_path) throws IOException {
+		InputStream is;
+
+		try {
+			is = new URL(c_path).openStream();
+		} catch (MalformedURLException e) {
+			is = new FileInputStream(c_path);
+		}
+
+		Properties configuration = new Properties();
+		configuration.load(is);
+
+		is.close();
+
+		return configuration;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String fp_path = "config/framework.properties";
+		if (args.length > 0) {
+			fp_path = args[0];
+		}
+
+		Properties configuration = loadConfiguration(fp_path);
+
+		/*
+		 * every run starts from an empty storage, the configured one is left
+		 * untouched
+		 */
+		File storage = File.createTempFile("f06-benchmark", null);
+		if (!storage.delete() || !storage.mkdir()) {
+			throw new IOException(new StringBuilder("Cannot create ").append(storage.getAbsolutePath()).toString());
+		}
+
+		configuration.put(Constants.FRAMEWORK_STORAGE, storage.getAbsolutePath());
+
+		/*
+		 * the benchmark bundle must be startable at the beginning start level
+		 */
+		configuration.put("org.osgi.framework.startlevel.initialbundle", "1");
+
+		Framework framework = new f06.osgi.framework.launch.FrameworkFactory().newFramework(configuration);
+
+		framework.start();
+
+		try {
+			new EventBenchmark(framework.getBundleContext()).run();
+		} finally {
+			framework.stop();
+
+			framework.waitForStop(10000L);
+
+			IOUtil.delete(storage);
+		}
+	}
+}
@@ -22,6 +22,8 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 import org.osgi.framework.Bundle;
@@ -136,41 +138,42 @@ public class Launcher {
 			ServiceReference startLevelReference = context.getServiceReference(StartLevel.class.getName());
 			StartLevel startLevel = (StartLevel) context.getService(startLevelReference);
 
+			/*
+			 * location -> Bundle
+			 */
+			Map bundlesByLocation = new HashMap();
+			
 			Bundle[] bundles0 = context.getBundles();
+			for (int i = 0; i < bundles0.length; i++) {
+				bundlesByLocation.put(bundles0[i].getLocation(), bundles0[i]);
+			}
 			
 			ManifestEntry[] entries = ManifestEntry.parse(bundles);
-			NEXT_BUNDLE: for (int i = 0; i < entries.length; i++) {
+			for (int i = 0; i < entries.length; i++) {
 				ManifestEntry entry = entries[i];
 				String location = entry.getName();
 				
-				for (int j = 0; j < bundles0.length; j++) {
-					if (bundles0[j].getLocation().equals(location)) {
-						continue NEXT_BUNDLE;
-					}
+				if (!bundlesByLocation.containsKey(location)) {
+					bundlesByLocation.put(location, context.installBundle(location));
 				}
-				
-				context.installBundle(location);
 			}
 				
-			Bundle[] bundles1 = context.getBundles();
 			for (int i = 0; i < entries.length; i++) {
 				ManifestEntry entry = entries[i];
 				String location = entry.getName();
 				
-				for (int j = 0; j < bundles1.length; j++) {
-					Bundle bundle = bundles1[j];
-					if (bundle.getLocation().equals(location)) {
-						try {
-							String startlevel = entry.getAttributeValue("startlevel");
-							if (startlevel != null) {
-								startLevel.setBundleStartLevel(bundle, Integer.parseInt(startlevel));
-							} else {
-								String useActivationPalocy = entry.getAttributeValue("use-activation-policy");
-								bundle.start(Boolean.parseBoolean(useActivationPalocy) ? 0 : Bundle.START_ACTIVATION_POLICY);
-							}
-						} catch (Exception e) {
-							e.printStackTrace();
+				Bundle bundle = (Bundle) bundlesByLocation.get(location);
+				if (bundle != null) {
+					try {
+						String startlevel = entry.getAttributeValue("startlevel");
+						if (startlevel != null) {
+							startLevel.setBundleStartLevel(bundle, Integer.parseInt(startlevel));
+						} else {
+							String useActivationPalocy = entry.getAttributeValue("use-activation-policy");
+							bundle.start(Boolean.parseBoolean(useActivationPalocy) ? 0 : Bundle.START_ACTIVATION_POLICY);
 						}
+					} catch (Exception e) {
+						e.printStackTrace();
 					}
 				}
 			}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * Reads a region of a file with positional reads: the channel position is
+ * not changed, so that more streams can read the same channel at the same
+ * time. Closing the stream does not close the channel.
+ */
+public class ChannelInputStream extends InputStream {
+
+	private ReopeningChannel channel;
+
+	private long position;
+
+	private long end;
+
+	public ChannelInputStream(ReopeningChannel channel, long position, long length) {
+		this.channel = channel;
+		this.position = position;
+		this.end = position + length;
+	}
+
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (position >= end) {
+			return -1;
+		}
+
+		len = (int) Math.min(len, end - position);
+
+		int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+		if (n > 0) {
+			position += n;
+		}
+
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		n = Math.max(0L, Math.min(n, end - position));
+
+		position += n;
+
+		return n;
+	}
+
+	public int available() throws IOException {
+		return (int) Math.min(Integer.MAX_VALUE, end - position);
+	}
+}
@@ -16,6 +16,7 @@
 package f06.util;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -58,6 +59,28 @@ public class IOUtil {
 	    return baos.toByteArray();
     }
 
+    /*
+     * Reads the given number of bytes straight into an array of that size, then
+     * closes the stream.
+     */
+    public static byte[] getBytes(InputStream is, int size) throws IOException {
+    	byte[] b = new byte[size];
+    	try {
+    		int off = 0;
+    		while (off < size) {
+    			int n = is.read(b, off, size - off);
+    			if (n == -1) {
+    				throw new EOFException();
+    			}
+    			off += n;
+    		}
+    	} finally {
+    		is.close();
+    	}
+
+    	return b;
+    }
+
     public static void copy(InputStream is, OutputStream os) throws IOException {
         byte[] buf = new byte[4096];
         int n = 0;
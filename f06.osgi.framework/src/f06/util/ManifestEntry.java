@@ -16,6 +16,7 @@
 package f06.util;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -23,7 +24,7 @@ import java.util.StringTokenizer;
 
 public class ManifestEntry {
 	
-	private static Map parsedEntries = new HashMap();
+	private static Map parsedEntries = Collections.synchronizedMap(new HashMap());
 	
 	private String name;
 	
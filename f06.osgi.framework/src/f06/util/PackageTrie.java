@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.util;
+
+/*
+ * Set of package names and package name prefixes, as in
+ * org.osgi.framework.bootdelegation: "com.acme" matches that package only,
+ * "com.acme.*" its subpackages and "*" any package.
+ *
+ * A name is matched in a single pass over its characters.
+ */
+public class PackageTrie {
+
+	private static class Node {
+
+		private char[] chars;
+
+		private Node[] nodes;
+
+		/*
+		 * a pattern ends here
+		 */
+		private boolean exact;
+
+		/*
+		 * a pattern ending with '*' ends here
+		 */
+		private boolean prefix;
+
+		Node() {
+			this.chars = new char[0];
+			this.nodes = new Node[0];
+		}
+
+		private int indexOf(char c) {
+			int low = 0;
+			int high = chars.length - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (chars[mid] < c) {
+					low = mid + 1;
+				} else if (chars[mid] > c) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+
+			return -(low + 1);
+		}
+
+		Node get(char c) {
+			int index = indexOf(c);
+
+			return index >= 0 ? nodes[index] : null;
+		}
+
+		Node add(char c) {
+			int index = indexOf(c);
+			if (index >= 0) {
+				return nodes[index];
+			}
+
+			index = -(index + 1);
+
+			char[] newChars = new char[chars.length + 1];
+			System.arraycopy(chars, 0, newChars, 0, index);
+			System.arraycopy(chars, index, newChars, index + 1, chars.length - index);
+			newChars[index] = c;
+
+			Node[] newNodes = new Node[nodes.length + 1];
+			System.arraycopy(nodes, 0, newNodes, 0, index);
+			System.arraycopy(nodes, index, newNodes, index + 1, nodes.length - index);
+			newNodes[index] = new Node();
+
+			chars = newChars;
+			nodes = newNodes;
+
+			return newNodes[index];
+		}
+	}
+
+	private final Node root;
+
+	public PackageTrie() {
+		this.root = new Node();
+	}
+
+	/*
+	 * The wildcard character may only end the pattern.
+	 *
+	 * Patterns must be added before the trie is shared among threads.
+	 */
+	public void add(String pattern) {
+		int index = pattern.indexOf('*');
+		if (index != -1 && index != pattern.length() - 1) {
+			throw new IllegalArgumentException(new StringBuilder("Invalid package name pattern ").append(pattern).toString());
+		}
+
+		String s = index == -1 ? pattern : pattern.substring(0, index);
+
+		Node node = root;
+		for (int i = 0; i < s.length(); i++) {
+			node = node.add(s.charAt(i));
+		}
+
+		if (index == -1) {
+			node.exact = true;
+		} else {
+			node.prefix = true;
+		}
+	}
+
+	public boolean matches(String name) {
+		Node node = root;
+		for (int i = 0; i < name.length(); i++) {
+			if (node.prefix) {
+				return true;
+			}
+
+			node = node.get(name.charAt(i));
+			if (node == null) {
+				return false;
+			}
+		}
+
+		return node.exact || node.prefix;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/*
+ * Read only channel of a file for positional reads by any number of threads.
+ * A FileChannel is closed for good when a thread reading it is interrupted:
+ * this one is reopened instead, and the read retried, until it is closed
+ * explicitly.
+ */
+public class ReopeningChannel {
+
+	private final File file;
+
+	private final Object channelLock;
+
+	private volatile FileChannel channel;
+
+	private volatile boolean closed;
+
+	public ReopeningChannel(File file) throws IOException {
+		this.file = file;
+		this.channelLock = new Object();
+		this.channel = new RandomAccessFile(file, "r").getChannel();
+	}
+
+	public long size() {
+		return file.length();
+	}
+
+	/*
+	 * Same as FileChannel.read(ByteBuffer, long), the interrupt status of the
+	 * thread is kept but does not fail the read.
+	 */
+	public int read(ByteBuffer dst, long position) throws IOException {
+		boolean interrupted = false;
+
+		try {
+			while (true) {
+				FileChannel channel = this.channel;
+
+				if (closed) {
+					throw new ClosedChannelException();
+				}
+
+				try {
+					return channel.read(dst, position);
+				} catch (ClosedChannelException e) {
+					/*
+					 * closed by an interrupt of this thread or of another one
+					 * reading the channel: the interrupt status is cleared,
+					 * otherwise the retry would close the channel again
+					 */
+					if (Thread.interrupted()) {
+						interrupted = true;
+					}
+
+					reopen(channel);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void reopen(FileChannel failed) throws IOException {
+		synchronized (channelLock) {
+			if (closed) {
+				throw new ClosedChannelException();
+			}
+
+			if (channel == failed) {
+				channel = new RandomAccessFile(file, "r").getChannel();
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		synchronized (channelLock) {
+			closed = true;
+
+			channel.close();
+		}
+	}
+}
@@ -15,48 +15,182 @@
  */
 package f06.util;
 
-import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 
 public class SerialExecutorService implements Runnable {
-	
+
+	/*
+	 * overflow policies applied when a bounded queue is full
+	 */
+
+	/*
+	 * the submitting thread waits until the queue has room
+	 */
+	public static final int BLOCK = 0;
+
+	/*
+	 * the submitting thread executes the command itself
+	 */
+	public static final int CALLER_RUNS = 1;
+
+	/*
+	 * the command is discarded and execute returns false
+	 */
+	public static final int DISCARD = 2;
+
+	private static final long RATE_WINDOW = 1000L;
+
+	static class Task {
+
+		Runnable command;
+
+		long enqueueTime;
+
+		Task(Runnable command, long enqueueTime) {
+			this.command = command;
+			this.enqueueTime = enqueueTime;
+		}
+	}
+
 	protected List queue;
-	
+
 	protected Thread internalThread;
-	
+
 	protected volatile boolean shutting_down;
 
 	protected volatile boolean terminated;
-	
+
+	protected int capacity;
+
+	protected int policy;
+
+	private long enqueuedCount;
+
+	private long discardedCount;
+
+	private long rateWindowStart;
+
+	private long rateWindowCount;
+
+	private double enqueueRate;
+
+	/*
+	 * notified of the exceptions thrown by the commands, printed if null
+	 */
+	private volatile Thread.UncaughtExceptionHandler exceptionHandler;
+
 	public SerialExecutorService(String name) {
-		queue = new ArrayList();
-		
+		this(name, 0, BLOCK);
+	}
+
+	/*
+	 * capacity <= 0 means an unbounded queue
+	 */
+	public SerialExecutorService(String name, int capacity, int policy) {
+		if (policy != BLOCK && policy != CALLER_RUNS && policy != DISCARD) {
+			throw new IllegalArgumentException(new StringBuilder("Unknown overflow policy: ").append(policy).toString());
+		}
+
+		queue = new LinkedList();
+
+		this.capacity = capacity;
+
+		this.policy = policy;
+
 		shutting_down = false;
-		
+
+		rateWindowStart = System.currentTimeMillis();
+
 		internalThread = new Thread(this, name);
-		
+
 		internalThread.setDaemon(true);
-		
+
 		internalThread.start();
 	}
 
-	public void execute(Runnable command) {
+	/*
+	 * Returns false if the command has been discarded.
+	 */
+	public boolean execute(Runnable command) {
 		if (shutting_down) {
 			System.err.println("WARNING: thread pool is shutting down, the command cannot be execute.");
-			return;
+			return false;
 		}
 
 		synchronized (queue) {
-			queue.add(command);
-			
-			queue.notifyAll();
+			while (capacity > 0 && queue.size() >= capacity) {
+				if (policy == DISCARD) {
+					discardedCount++;
+
+					return false;
+				} else if (policy == CALLER_RUNS || Thread.currentThread() == internalThread) {
+					/*
+					 * a command which submits to its own full queue would wait
+					 * forever, hence it runs it itself
+					 */
+					break;
+				}
+
+				try {
+					queue.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+
+					/*
+					 * the command is dropped as if the queue discarded it
+					 */
+					discardedCount++;
+
+					return false;
+				}
+
+				if (shutting_down) {
+					return false;
+				}
+			}
+
+			if (capacity <= 0 || queue.size() < capacity) {
+				enqueue(command);
+
+				return true;
+			}
 		}
+
+		command.run();
+
+		return true;
 	}
-	
+
+	private void enqueue(Runnable command) {
+		long now = System.currentTimeMillis();
+
+		long elapsed = now - rateWindowStart;
+		if (elapsed >= RATE_WINDOW) {
+			enqueueRate = (rateWindowCount * 1000D) / elapsed;
+
+			rateWindowStart = now;
+
+			rateWindowCount = 0L;
+		}
+
+		rateWindowCount++;
+
+		enqueuedCount++;
+
+		queue.add(new Task(command, now));
+
+		queue.notifyAll();
+	}
+
+	public void setExceptionHandler(Thread.UncaughtExceptionHandler exceptionHandler) {
+		this.exceptionHandler = exceptionHandler;
+	}
+
 	public Future submit(Runnable command) {
 		Future future = new Future(command);
 		execute(future);
-		
+
 		return future;
 	}
 
@@ -66,15 +200,74 @@ public class SerialExecutorService implements Runnable {
 				shutting_down = true;
 
 				internalThread.interrupt();
-				
+
 				internalThread = null;
+
+				/*
+				 * wake up blocked submitters
+				 */
+				queue.notifyAll();
 			}
 		}
 	}
 
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getQueueDepth() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	/*
+	 * Age in milliseconds of the command waiting at the head of the queue,
+	 * 0 if the queue is empty.
+	 */
+	public long getOldestTaskAge() {
+		synchronized (queue) {
+			if (queue.isEmpty()) {
+				return 0L;
+			}
+
+			Task task = (Task) queue.get(0);
+
+			return System.currentTimeMillis() - task.enqueueTime;
+		}
+	}
+
+	/*
+	 * Commands per second enqueued during the last complete rate window.
+	 */
+	public double getEnqueueRate() {
+		synchronized (queue) {
+			if (System.currentTimeMillis() - rateWindowStart >= 2 * RATE_WINDOW) {
+				/*
+				 * no commands since the last window
+				 */
+				return 0D;
+			}
+
+			return enqueueRate;
+		}
+	}
+
+	public long getEnqueuedCount() {
+		synchronized (queue) {
+			return enqueuedCount;
+		}
+	}
+
+	public long getDiscardedCount() {
+		synchronized (queue) {
+			return discardedCount;
+		}
+	}
+
 	final public void run() {
 		EXIT: while (!shutting_down) {
-			Runnable command = null;
+			Task task = null;
 			synchronized (queue) {
 				// to prevent a misalignment between wait/notifyAll
 				while (queue.isEmpty()) {
@@ -86,12 +279,30 @@ public class SerialExecutorService implements Runnable {
 					}
 				}
 
-				command = (Runnable) queue.remove(0);
+				task = (Task) queue.remove(0);
 
-				command.run();
+				/*
+				 * wake up submitters blocked on a full queue
+				 */
+				queue.notifyAll();
+			}
+
+			/*
+			 * the command runs outside the lock so that submitters
+			 * are not held while it executes
+			 */
+			try {
+				task.command.run();
+			} catch (Throwable t) {
+				Thread.UncaughtExceptionHandler exceptionHandler = this.exceptionHandler;
+				if (exceptionHandler != null) {
+					exceptionHandler.uncaughtException(Thread.currentThread(), t);
+				} else {
+					t.printStackTrace();
+				}
 			}
 		}
-	
+
 		terminated = true;
 	}
 }
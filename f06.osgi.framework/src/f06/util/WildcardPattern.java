@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.util;
+
+/*
+ * A pattern where '*' matches any sequence of characters, split once into
+ * its literal parts so that matching does not allocate.
+ */
+public class WildcardPattern {
+
+	private String pattern;
+
+	/*
+	 * literal parts between the wildcards
+	 */
+	private String[] parts;
+
+	private boolean leadingWildcard;
+
+	private boolean trailingWildcard;
+
+	private WildcardPattern(String pattern) {
+		this.pattern = pattern;
+
+		this.leadingWildcard = pattern.startsWith("*");
+
+		this.trailingWildcard = pattern.endsWith("*");
+
+		String[] parts = new String[0];
+
+		int start = 0;
+		for (int i = pattern.indexOf('*'); i != -1; i = pattern.indexOf('*', start)) {
+			if (i > start) {
+				parts = (String[]) ArrayUtil.add(parts, pattern.substring(start, i));
+			}
+
+			start = i + 1;
+		}
+
+		if (start < pattern.length()) {
+			parts = (String[]) ArrayUtil.add(parts, pattern.substring(start));
+		}
+
+		this.parts = parts;
+	}
+
+	public static WildcardPattern compile(String pattern) {
+		return new WildcardPattern(pattern.trim());
+	}
+
+	public static WildcardPattern[] compile(String[] patterns) {
+		WildcardPattern[] compiled = new WildcardPattern[patterns.length];
+		for (int i = 0; i < patterns.length; i++) {
+			compiled[i] = compile(patterns[i]);
+		}
+
+		return compiled;
+	}
+
+	public static boolean matches(WildcardPattern[] patterns, String s) {
+		for (int i = 0; i < patterns.length; i++) {
+			if (patterns[i].matches(s)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public boolean matches(String s) {
+		if (parts.length == 0) {
+			/*
+			 * either "*" or the empty pattern
+			 */
+			return leadingWildcard || s.length() == 0;
+		}
+
+		int from = 0;
+
+		int last = parts.length - 1;
+
+		for (int i = 0; i <= last; i++) {
+			String part = parts[i];
+
+			if (i == 0 && !leadingWildcard) {
+				if (!s.startsWith(part)) {
+					return false;
+				}
+
+				from = part.length();
+			} else if (i == last && !trailingWildcard) {
+				/*
+				 * the last part is anchored to the end, and must not overlap
+				 * the parts already matched
+				 */
+				return s.length() - part.length() >= from && s.endsWith(part);
+			} else {
+				int index = s.indexOf(part, from);
+				if (index == -1) {
+					return false;
+				}
+
+				from = index + part.length();
+			}
+		}
+
+		return trailingWildcard || from == s.length();
+	}
+
+	public String toString() {
+		return pattern;
+	}
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) Davide Raccagni (2006, 2009). All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package f06.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/*
+ * Central directory of a zip archive stored in a region of a file, for instance
+ * a jar stored (not compressed) inside another jar. Entries are read with
+ * positional reads on the channel, hence by any number of threads at the same
+ * time and without extracting the archive.
+ *
+ * ZIP64 archives are not supported.
+ */
+public class ZipDirectory {
+
+	private final static int END_SIGNATURE = 0x06054b50;
+
+	private final static int CENTRAL_SIGNATURE = 0x02014b50;
+
+	private final static int LOCAL_SIGNATURE = 0x04034b50;
+
+	private final static int END_SIZE = 22;
+
+	private final static int CENTRAL_SIZE = 46;
+
+	private final static int LOCAL_SIZE = 30;
+
+	private final static int MAX_POOLED_INFLATERS = 8;
+
+	public static class Entry {
+
+		private String name;
+
+		private int method;
+
+		private long compressedSize;
+
+		private long size;
+
+		/*
+		 * relative to the beginning of the archive
+		 */
+		private long localHeaderOffset;
+
+		/*
+		 * absolute, read from the local header on first access
+		 */
+		private volatile long dataOffset;
+
+		Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+			this.name = name;
+			this.method = method;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+			this.dataOffset = -1L;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/*
+		 * ZipEntry.STORED or ZipEntry.DEFLATED
+		 */
+		public int getMethod() {
+			return method;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		public long getSize() {
+			return size;
+		}
+	}
+
+	/*
+	 * The channel is read past its end by one dummy byte, as the Inflater
+	 * requires when the zlib header is not present.
+	 */
+	private static class EntryInflaterInputStream extends InflaterInputStream {
+
+		private boolean eof;
+
+		private boolean closed;
+
+		EntryInflaterInputStream(InputStream in) {
+			super(in, new Inflater(true), 1024);
+		}
+
+		protected void fill() throws IOException {
+			if (eof) {
+				throw new EOFException("Unexpected end of ZLIB input stream");
+			}
+
+			len = in.read(buf, 0, buf.length);
+			if (len == -1) {
+				buf[0] = 0;
+				len = 1;
+				eof = true;
+			}
+
+			inf.setInput(buf, 0, len);
+		}
+
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+
+				inf.end();
+
+				super.close();
+			}
+		}
+	}
+
+	private ReopeningChannel channel;
+
+	private long base;
+
+	private Map entriesByName;
+
+	/*
+	 * Inflaters released by getBytes, reused instead of allocating native
+	 * memory for each entry
+	 */
+	private List inflaters;
+
+	private boolean closed;
+
+	private ZipDirectory(ReopeningChannel channel, long base, Map entriesByName) {
+		this.channel = channel;
+		this.base = base;
+		this.entriesByName = entriesByName;
+		this.inflaters = new ArrayList();
+	}
+
+	/*
+	 * Reads the central directory of the archive of the given length starting at
+	 * base.
+	 */
+	public static ZipDirectory read(ReopeningChannel channel, long base, long length) throws IOException {
+		/*
+		 * the end of central directory record is followed by a comment of at
+		 * most 65535 bytes
+		 */
+		int tailLength = (int) Math.min(length, END_SIZE + 0xFFFF);
+
+		ByteBuffer tail = read(channel, base + length - tailLength, tailLength);
+
+		int end = -1;
+		for (int i = tailLength - END_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == END_SIGNATURE) {
+				end = i;
+				break;
+			}
+		}
+
+		if (end == -1) {
+			throw new IOException("End of central directory not found.");
+		}
+
+		int count = tail.getShort(end + 10) & 0xFFFF;
+
+		long centralSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+
+		long centralOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+
+		if (count == 0xFFFF || centralSize == 0xFFFFFFFFL || centralOffset == 0xFFFFFFFFL) {
+			throw new IOException("ZIP64 archives are not supported.");
+		}
+
+		if (centralOffset + centralSize > length) {
+			throw new IOException("Invalid central directory offset.");
+		}
+
+		ByteBuffer central = read(channel, base + centralOffset, (int) centralSize);
+
+		Map entriesByName = new LinkedHashMap();
+
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			if (central.getInt(position) != CENTRAL_SIGNATURE) {
+				throw new IOException("Invalid central directory entry.");
+			}
+
+			int method = central.getShort(position + 10) & 0xFFFF;
+
+			long compressedSize = central.getInt(position + 20) & 0xFFFFFFFFL;
+
+			long size = central.getInt(position + 24) & 0xFFFFFFFFL;
+
+			int nameLength = central.getShort(position + 28) & 0xFFFF;
+
+			int extraLength = central.getShort(position + 30) & 0xFFFF;
+
+			int commentLength = central.getShort(position + 32) & 0xFFFF;
+
+			long localHeaderOffset = central.getInt(position + 42) & 0xFFFFFFFFL;
+
+			byte[] b = new byte[nameLength];
+			for (int j = 0; j < nameLength; j++) {
+				b[j] = central.get(position + CENTRAL_SIZE + j);
+			}
+
+			/*
+			 * general purpose flag bit 11: the name is encoded in UTF-8
+			 */
+			String name = (central.getShort(position + 8) & 0x0800) != 0 ?
+					new String(b, "UTF-8") :
+					new String(b, "ISO-8859-1");
+
+			entriesByName.put(name, new Entry(name, method, compressedSize, size, localHeaderOffset));
+
+			position += CENTRAL_SIZE + nameLength + extraLength + commentLength;
+		}
+
+		return new ZipDirectory(channel, base, entriesByName);
+	}
+
+	private static ByteBuffer read(ReopeningChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1) {
+				throw new EOFException();
+			}
+		}
+
+		buffer.flip();
+
+		return buffer;
+	}
+
+	private void read(long position, byte[] b, int off, int len) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position() - off) == -1) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	public Entry getEntry(String name) {
+		return (Entry) entriesByName.get(name);
+	}
+
+	public String[] getNames() {
+		return (String[]) entriesByName.keySet().toArray(new String[entriesByName.size()]);
+	}
+
+	/*
+	 * Absolute position of the entry data in the file.
+	 */
+	public long getDataOffset(Entry entry) throws IOException {
+		long dataOffset = entry.dataOffset;
+		if (dataOffset == -1L) {
+			ByteBuffer local = read(channel, base + entry.localHeaderOffset, LOCAL_SIZE);
+			if (local.getInt(0) != LOCAL_SIGNATURE) {
+				throw new IOException(new StringBuilder("Invalid local header for entry ").append(entry.name).toString());
+			}
+
+			int nameLength = local.getShort(26) & 0xFFFF;
+
+			int extraLength = local.getShort(28) & 0xFFFF;
+
+			dataOffset = base + entry.localHeaderOffset + LOCAL_SIZE + nameLength + extraLength;
+
+			entry.dataOffset = dataOffset;
+		}
+
+		return dataOffset;
+	}
+
+	public InputStream getInputStream(Entry entry) throws IOException {
+		InputStream is = new ChannelInputStream(channel, getDataOffset(entry), entry.compressedSize);
+
+		if (entry.method == ZipEntry.DEFLATED) {
+			is = new EntryInflaterInputStream(is);
+		} else if (entry.method != ZipEntry.STORED) {
+			throw new IOException(new StringBuilder("Unsupported compression method ").append(entry.method).append(" for entry ").append(entry.name).toString());
+		}
+
+		return is;
+	}
+
+	/*
+	 * Reads the content of the entry into an array as large as the entry: a
+	 * stored entry is read in place, a deflated one is read and inflated at
+	 * once.
+	 */
+	public byte[] getBytes(Entry entry) throws IOException {
+		if (entry.size > Integer.MAX_VALUE) {
+			throw new IOException(new StringBuilder("Entry ").append(entry.name).append(" is too large").toString());
+		}
+
+		byte[] b = new byte[(int) entry.size];
+
+		if (entry.method == ZipEntry.STORED) {
+			read(getDataOffset(entry), b, 0, b.length);
+		} else if (entry.method == ZipEntry.DEFLATED) {
+			/*
+			 * one more dummy byte, as the Inflater requires when the zlib
+			 * header is not present
+			 */
+			byte[] input = new byte[(int) entry.compressedSize + 1];
+
+			read(getDataOffset(entry), input, 0, input.length - 1);
+
+			Inflater inf = getInflater();
+			try {
+				inf.setInput(input);
+
+				int off = 0;
+				while (off < b.length) {
+					int n = inf.inflate(b, off, b.length - off);
+					if (n == 0 && (inf.finished() || inf.needsInput() || inf.needsDictionary())) {
+						throw new EOFException(new StringBuilder("Unexpected end of entry ").append(entry.name).toString());
+					}
+					off += n;
+				}
+			} catch (DataFormatException e) {
+				throw new ZipException(new StringBuilder("Invalid data for entry ").append(entry.name).toString());
+			} finally {
+				releaseInflater(inf);
+			}
+		} else {
+			throw new IOException(new StringBuilder("Unsupported compression method ").append(entry.method).append(" for entry ").append(entry.name).toString());
+		}
+
+		return b;
+	}
+
+	private Inflater getInflater() {
+		synchronized (inflaters) {
+			if (!inflaters.isEmpty()) {
+				return (Inflater) inflaters.remove(inflaters.size() - 1);
+			}
+		}
+
+		return new Inflater(true);
+	}
+
+	private void releaseInflater(Inflater inf) {
+		inf.reset();
+
+		synchronized (inflaters) {
+			if (!closed && inflaters.size() < MAX_POOLED_INFLATERS) {
+				inflaters.add(inf);
+
+				return;
+			}
+		}
+
+		inf.end();
+	}
+
+	/*
+	 * Ends the pooled inflaters, the channel is not closed.
+	 */
+	public void close() {
+		synchronized (inflaters) {
+			closed = true;
+
+			for (int i = 0; i < inflaters.size(); i++) {
+				((Inflater) inflaters.get(i)).end();
+			}
+
+			inflaters.clear();
+		}
+	}
+}